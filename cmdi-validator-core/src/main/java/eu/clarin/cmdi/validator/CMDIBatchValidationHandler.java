@@ -0,0 +1,33 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.util.List;
+
+
+/*
+ * A handler, that wants to receive reports in batches. Batches are only
+ * delivered, if reports are delivered asynchronously. Otherwise, or if a
+ * handler does not implement this interface, onValidationReport() is called
+ * for every report.
+ */
+public interface CMDIBatchValidationHandler extends CMDIValidationHandler {
+
+    public void onValidationReports(final List<CMDIValidationReport> reports)
+            throws CMDIValidatorException;
+
+} // interface CMDIBatchValidationHandler
@@ -25,11 +25,22 @@ import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.channels.FileLock;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -58,6 +69,7 @@ public final class CMDISchemaLoader {
     private static final String XML_XSD_RESSOURCE = "/xml.xsd";
     private static final String EXTENSION_XSD   = "xsd";
     private static final String EXTENSION_ERROR = "error";
+    private static final int DEPENDENCY_THREADS = 4;
     private final File cacheDirectory;
     private final long maxCacheAge;
     private final long maxNegativeCacheAge;
@@ -65,6 +77,7 @@ public final class CMDISchemaLoader {
     private final Set<String> pending = new HashSet<String>(128);
     private final Object guard = new Object();
     private final Object waiter = new Object();
+    private ThreadPoolExecutor dependencyExecutor;
 
 
     public CMDISchemaLoader(File cacheDirectory, long maxCacheAge,
@@ -103,6 +116,11 @@ public final class CMDISchemaLoader {
     }
 
 
+    File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+
     public InputStream loadSchemaFile(String targetNamespace,
             String schemaLocation) throws IOException {
         if (targetNamespace == null) {
@@ -178,6 +196,12 @@ public final class CMDISchemaLoader {
                 try {
                     download(cacheDataFile, schemaLocation);
                     logger.trace("downloaded schema from '{}' succesfully", schemaLocation);
+                    /*
+                     * fetch imported and included schemas in parallel,
+                     * while Xerces is busy with this one
+                     */
+                    loadDependencies(targetNamespace, schemaLocation,
+                            cacheDataFile);
                     return new FileInputStream(cacheDataFile);
                 } catch (IOException e) {
                     logger.error("downloading schema from '{}' failed", schemaLocation);
@@ -284,6 +308,146 @@ public final class CMDISchemaLoader {
     }
 
 
+    private void loadDependencies(String targetNamespace,
+            String schemaLocation, File file) {
+        final List<String[]> dependencies;
+        try {
+            dependencies = findDependencies(targetNamespace, schemaLocation,
+                    file);
+        } catch (IOException e) {
+            /* Xerces will complain about it later */
+            logger.debug("error looking for dependencies of '{}': {}",
+                    schemaLocation, e.getMessage());
+            return;
+        }
+        for (final String[] dependency : dependencies) {
+            if (XMLConstants.XML_NS_URI.equals(dependency[0]) ||
+                    makeFile(dependency[1], EXTENSION_XSD).exists()) {
+                continue;
+            }
+            logger.trace("loading dependency '{}' of '{}'",
+                    dependency[1], schemaLocation);
+            try {
+                getDependencyExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            loadSchemaFile(dependency[0], dependency[1])
+                                .close();
+                        } catch (IOException e) {
+                            logger.debug("error loading dependency '{}': {}",
+                                    dependency[1], e.getMessage());
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                /* Xerces will load it by itself */
+            }
+        }
+    }
+
+
+    private synchronized ThreadPoolExecutor getDependencyExecutor() {
+        if (dependencyExecutor == null) {
+            dependencyExecutor = new ThreadPoolExecutor(DEPENDENCY_THREADS,
+                    DEPENDENCY_THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                private final AtomicInteger id = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable target) {
+                    final Thread thread = new Thread(target,
+                            String.format("schema-loader-%02x",
+                                    id.getAndIncrement()));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            dependencyExecutor.allowCoreThreadTimeOut(true);
+        }
+        return dependencyExecutor;
+    }
+
+
+    /*
+     * Returns pairs of namespace and location of all schemas imported,
+     * included or redefined by a schema. These must precede all other
+     * declarations, so the schema does not need to be parsed completely.
+     */
+    private static List<String[]> findDependencies(String targetNamespace,
+            String schemaLocation, File file) throws IOException {
+        final List<String[]> result = new ArrayList<String[]>();
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                Boolean.FALSE);
+        final InputStream stream = new FileInputStream(file);
+        try {
+            final XMLStreamReader reader =
+                    factory.createXMLStreamReader(stream);
+            try {
+                final URI base = new URI(schemaLocation);
+                int depth = 0;
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                        continue;
+                    }
+                    if (event != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    depth++;
+                    if (depth != 2) {
+                        continue;
+                    }
+                    if (!XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(
+                            reader.getNamespaceURI())) {
+                        break;
+                    }
+                    final String name = reader.getLocalName();
+                    String namespace;
+                    if ("import".equals(name)) {
+                        namespace = reader.getAttributeValue(null, "namespace");
+                        if (namespace == null) {
+                            namespace = "";
+                        }
+                    } else if ("include".equals(name) ||
+                            "redefine".equals(name)) {
+                        namespace = targetNamespace;
+                    } else if ("annotation".equals(name)) {
+                        continue;
+                    } else {
+                        break;
+                    }
+                    final String location =
+                            reader.getAttributeValue(null, "schemaLocation");
+                    if ((location != null) && !location.trim().isEmpty()) {
+                        result.add(new String[] {
+                                namespace,
+                                base.resolve(location.trim()).toString()
+                        });
+                    }
+                } // while
+            } finally {
+                reader.close();
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException("invalid schema location: " +
+                    schemaLocation, e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("invalid dependency of " +
+                    schemaLocation, e);
+        } catch (XMLStreamException e) {
+            throw new IOException("error parsing schema: " +
+                    schemaLocation, e);
+        } finally {
+            stream.close();
+        }
+        return result;
+    }
+
+
     private File makeFile(String schemaLocation, String extension) {
         final StringBuilder sb = new StringBuilder();
         for (int i = 0; i < schemaLocation.length(); i++) {
@@ -373,6 +537,11 @@ public final class CMDISchemaLoader {
 
     @Override
     protected void finalize() throws Throwable {
+        synchronized (this) {
+            if (dependencyExecutor != null) {
+                dependencyExecutor.shutdownNow();
+            }
+        } // synchronized (this)
         httpClient.close();
     }
 
@@ -16,8 +16,11 @@
  */
 package eu.clarin.cmdi.validator;
 
+import java.io.File;
+import java.util.List;
 
-public class CMDIValidationHandlerAdapter implements CMDIValidationHandler {
+public class CMDIValidationHandlerAdapter implements
+        CMDIBatchValidationHandler {
 
     @Override
     public void onJobStarted() throws CMDIValidatorException {
@@ -35,4 +38,26 @@ public class CMDIValidationHandlerAdapter implements CMDIValidationHandler {
             throws CMDIValidatorException {
     }
 
+
+    @Override
+    public void onValidationReports(final List<CMDIValidationReport> reports)
+            throws CMDIValidatorException {
+        for (CMDIValidationReport report : reports) {
+            onValidationReport(report);
+        }
+    }
+
+
+    /*
+     * Get the size of the file of a report. Reports created by the validator
+     * already know the size, so the file does not need to be looked at again.
+     */
+    protected static long getFileSize(final CMDIValidationReport report) {
+        if (report instanceof CMDIWriteableValidatonReportImpl) {
+            return ((CMDIWriteableValidatonReportImpl) report).getFileSize();
+        }
+        final File file = report.getFile();
+        return (file != null) ? file.length() : -1;
+    }
+
 } // class CMDIValidationHandlerAdapter
@@ -23,13 +23,27 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.xml.XMLConstants;
 import javax.xml.transform.ErrorListener;
@@ -37,8 +51,6 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
-import net.java.truevfs.access.TFile;
-import net.java.truevfs.access.TFileInputStream;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
@@ -59,16 +71,11 @@ import net.sf.saxon.s9api.XsltTransformer;
 import net.sf.saxon.trans.UncheckedXPathException;
 
 import org.apache.commons.lang3.SystemUtils;
-import org.apache.xerces.impl.xs.XMLSchemaLoader;
-import org.apache.xerces.impl.xs.XSDDescription;
 import org.apache.xerces.parsers.SAXParser;
 import org.apache.xerces.parsers.XML11Configuration;
 import org.apache.xerces.util.SymbolTable;
 import org.apache.xerces.xni.XMLResourceIdentifier;
 import org.apache.xerces.xni.XNIException;
-import org.apache.xerces.xni.grammars.Grammar;
-import org.apache.xerces.xni.grammars.XMLGrammarDescription;
-import org.apache.xerces.xni.grammars.XMLGrammarPool;
 import org.apache.xerces.xni.parser.XMLEntityResolver;
 import org.apache.xerces.xni.parser.XMLErrorHandler;
 import org.apache.xerces.xni.parser.XMLInputSource;
@@ -80,13 +87,332 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
-import eu.clarin.cmdi.validator.utils.LRUCache;
 import eu.clarin.cmdi.validator.utils.LocationUtils;
 
 
 public final class CMDIValidator {
     public enum Result {
-        OK, ABORTED, ERROR
+        OK, ABORTED, TIMEOUT, ERROR
+    }
+    public static final class Statistics {
+        private final long filesEnumeratedCount;
+        private final int enumeratorQueueDepth;
+        private final int enumeratorQueueCapacity;
+        private final long enumeratorStallCount;
+        private final long enumeratorStallTime;
+        private final long filesProcessedCount;
+        private final long bytesProcessedCount;
+        private final long filesTimedOutCount;
+        private final long filesPrefetchedCount;
+        private final long filesPrefetchBypassedCount;
+        private final long admittedMemory;
+        private final long admissionWaitCount;
+        private final int reportQueueDepth;
+        private final int reportQueueCapacity;
+        private final long reportQueueStallCount;
+        private final long reportBatchCount;
+        private final long reportHandlerTime;
+
+
+        private Statistics(long filesEnumeratedCount,
+                int enumeratorQueueDepth,
+                int enumeratorQueueCapacity,
+                long enumeratorStallCount,
+                long enumeratorStallTime,
+                long filesProcessedCount,
+                long bytesProcessedCount,
+                long filesTimedOutCount,
+                long filesPrefetchedCount,
+                long filesPrefetchBypassedCount,
+                long admittedMemory,
+                long admissionWaitCount,
+                int reportQueueDepth,
+                int reportQueueCapacity,
+                long reportQueueStallCount,
+                long reportBatchCount,
+                long reportHandlerTime) {
+            this.filesEnumeratedCount    = filesEnumeratedCount;
+            this.enumeratorQueueDepth    = enumeratorQueueDepth;
+            this.enumeratorQueueCapacity = enumeratorQueueCapacity;
+            this.enumeratorStallCount    = enumeratorStallCount;
+            this.enumeratorStallTime     = enumeratorStallTime;
+            this.filesProcessedCount     = filesProcessedCount;
+            this.bytesProcessedCount     = bytesProcessedCount;
+            this.filesTimedOutCount      = filesTimedOutCount;
+            this.filesPrefetchedCount    = filesPrefetchedCount;
+            this.filesPrefetchBypassedCount = filesPrefetchBypassedCount;
+            this.admittedMemory          = admittedMemory;
+            this.admissionWaitCount      = admissionWaitCount;
+            this.reportQueueDepth        = reportQueueDepth;
+            this.reportQueueCapacity     = reportQueueCapacity;
+            this.reportQueueStallCount   = reportQueueStallCount;
+            this.reportBatchCount        = reportBatchCount;
+            this.reportHandlerTime       = reportHandlerTime;
+        }
+
+
+        public long getFilesEnumeratedCount() {
+            return filesEnumeratedCount;
+        }
+
+
+        public int getEnumeratorQueueDepth() {
+            return enumeratorQueueDepth;
+        }
+
+
+        public int getEnumeratorQueueCapacity() {
+            return enumeratorQueueCapacity;
+        }
+
+
+        public long getEnumeratorStallCount() {
+            return enumeratorStallCount;
+        }
+
+
+        public long getEnumeratorStallTime() {
+            return enumeratorStallTime;
+        }
+
+
+        public long getFilesProcessedCount() {
+            return filesProcessedCount;
+        }
+
+
+        public long getBytesProcessedCount() {
+            return bytesProcessedCount;
+        }
+
+
+        public long getFilesTimedOutCount() {
+            return filesTimedOutCount;
+        }
+
+
+        public long getFilesPrefetchedCount() {
+            return filesPrefetchedCount;
+        }
+
+
+        /*
+         * The number of files, that were not prefetched, because the
+         * prefetch budget was exhausted.
+         */
+        public long getFilesPrefetchBypassedCount() {
+            return filesPrefetchBypassedCount;
+        }
+
+
+        public long getAdmittedMemory() {
+            return admittedMemory;
+        }
+
+
+        public long getAdmissionWaitCount() {
+            return admissionWaitCount;
+        }
+
+
+        public int getReportQueueDepth() {
+            return reportQueueDepth;
+        }
+
+
+        public int getReportQueueCapacity() {
+            return reportQueueCapacity;
+        }
+
+
+        public long getReportQueueStallCount() {
+            return reportQueueStallCount;
+        }
+
+
+        public long getReportBatchCount() {
+            return reportBatchCount;
+        }
+
+
+        /*
+         * Returns the total time (in milliseconds) spent in the handler
+         * delivering batches of reports.
+         */
+        public long getReportHandlerTime() {
+            return reportHandlerTime;
+        }
+
+
+        /*
+         * Returns the average time (in milliseconds) the handler took to
+         * process a batch of reports or -1, if not available.
+         */
+        public double getReportHandlerLatency() {
+            return (reportBatchCount > 0)
+                    ? ((double) reportHandlerTime / reportBatchCount)
+                    : -1;
+        }
+    }
+    public static final class GrammarCacheStatistics {
+        private final int size;
+        private final long weight;
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long rejectionCount;
+        private final long compileCount;
+        private final long compileTime;
+        private final long verifiedCount;
+        private final long waitCount;
+        private final long waitTime;
+
+
+        GrammarCacheStatistics(int size,
+                long weight,
+                long hitCount,
+                long missCount,
+                long evictionCount,
+                long rejectionCount,
+                long compileCount,
+                long compileTime,
+                long verifiedCount,
+                long waitCount,
+                long waitTime) {
+            this.size           = size;
+            this.weight         = weight;
+            this.hitCount       = hitCount;
+            this.missCount      = missCount;
+            this.evictionCount  = evictionCount;
+            this.rejectionCount = rejectionCount;
+            this.compileCount   = compileCount;
+            this.compileTime    = compileTime;
+            this.verifiedCount  = verifiedCount;
+            this.waitCount      = waitCount;
+            this.waitTime       = waitTime;
+        }
+
+
+        public int getSize() {
+            return size;
+        }
+
+
+        public long getWeight() {
+            return weight;
+        }
+
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+
+        public long getRejectionCount() {
+            return rejectionCount;
+        }
+
+
+        public long getCompileCount() {
+            return compileCount;
+        }
+
+
+        public long getCompileTime() {
+            return compileTime;
+        }
+
+
+        /*
+         * Returns the number of grammars, that have been compiled without
+         * full schema checking, because they were checked in an earlier run.
+         */
+        public long getVerifiedCount() {
+            return verifiedCount;
+        }
+
+
+        /*
+         * Returns the number of times a thread needed to wait for another
+         * thread compiling the same grammar.
+         */
+        public long getWaitCount() {
+            return waitCount;
+        }
+
+
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+
+        public double getHitRatio() {
+            final long total = hitCount + missCount;
+            return (total > 0) ? ((double) hitCount / total) : -1;
+        }
+    }
+    public static final class WarmUpStatistics {
+        private final long filesScannedCount;
+        private final int schemaCount;
+        private final int failedCount;
+        private final int skippedCount;
+        private final long time;
+
+
+        WarmUpStatistics(long filesScannedCount,
+                int schemaCount,
+                int failedCount,
+                int skippedCount,
+                long time) {
+            this.filesScannedCount = filesScannedCount;
+            this.schemaCount       = schemaCount;
+            this.failedCount       = failedCount;
+            this.skippedCount      = skippedCount;
+            this.time              = time;
+        }
+
+
+        public long getFilesScannedCount() {
+            return filesScannedCount;
+        }
+
+
+        /*
+         * Returns the number of distinct schemas (i.e. profiles) referenced
+         * by the files.
+         */
+        public int getSchemaCount() {
+            return schemaCount;
+        }
+
+
+        public int getFailedCount() {
+            return failedCount;
+        }
+
+
+        /*
+         * Returns the number of schemas, that were not loaded, because the
+         * grammar cache is too small to hold all of them.
+         */
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+
+        public long getTime() {
+            return time;
+        }
     }
     private static final Logger logger =
             LoggerFactory.getLogger(CMDIValidator.class);
@@ -102,10 +428,6 @@ public final class CMDIValidator {
             "/default.sch";
     private static final String XML_SCHEMA_LOCATION =
             "http://www.w3.org/2001/xml.xsd";
-    private static final String XML_SCHEMA_GRAMMAR_TYPE =
-            "http://www.w3.org/2001/XMLSchema";
-    private static final String GRAMMAR_POOL =
-            "http://apache.org/xml/properties/internal/grammar-pool";
     private static final String NAMESPACES_FEATURE_ID =
             "http://xml.org/sax/features/namespaces";
     private static final String VALIDATION_FEATURE_ID =
@@ -116,22 +438,51 @@ public final class CMDIValidator {
             "http://apache.org/xml/features/validation/schema-full-checking";
     private static final String HONOUR_ALL_SCHEMA_LOCATIONS_ID =
             "http://apache.org/xml/features/honour-all-schemaLocations";
+    private static final String ERROR_HANDLER_PROPERTY_ID =
+            "http://apache.org/xml/properties/internal/error-handler";
     private static final int INITAL_SYMBOL_TABLE_SIZE = 16141;
+    /* validations, that timed out, but are still running */
+    private static final int MAX_ABANDONED_TASKS = 32;
     private static final QName SVRL_S = new QName("s");
     private static final QName SVRL_L = new QName("l");
     private final Processor processor;
     private final CMDISchemaLoader schemaLoader;
+    private final XMLEntityResolver entityResolver;
+    private final SharedXMLGrammarPool grammarPool;
+    /* all parsers share the names of the profiles */
+    private final SymbolTable symbols =
+            new ConcurrentSymbolTable(INITAL_SYMBOL_TABLE_SIZE);
     private final XsltExecutable schematronValidatorExecutable;
     private final XQueryExecutable analyzeSchematronReport;
     private final List<CMDIValidatorExtension> extensions;
+    private final FileEntry root;
+    private final FileFilter fileFilter;
     private final FileEnumerator files;
+    private final SchemaWarmUp warmUp;
     private final long maxFileSize;
+    private final MemoryBudget memoryBudget;
+    private final long fileTimeLimit;
+    private final int batchSize;
+    private final boolean errorCausesDisabled;
     private final CMDIValidationHandler handler;
-    private final Map<Thread, ThreadContext> contexts =
-            new ConcurrentHashMap<Thread, ThreadContext>();
+    private final ReportDispatcher dispatcher;
+    private final Queue<ThreadContext> contexts =
+            new ConcurrentLinkedQueue<ThreadContext>();
+    private final Map<Integer, ThreadContext> laneContexts =
+            new ConcurrentHashMap<Integer, ThreadContext>();
     private final AtomicInteger threadsProcessing = new AtomicInteger();
-    private State state = State.INIT;
-    private Result result = null;
+    private final AtomicLong filesProcessed = new AtomicLong();
+    private final AtomicLong bytesProcessed = new AtomicLong();
+    private final AtomicLong filesTimedOutCount = new AtomicLong();
+    private final AtomicInteger abandonedCount = new AtomicInteger();
+    private final AtomicReference<State> state =
+            new AtomicReference<State>(State.INIT);
+    private final AtomicReference<Result> result =
+            new AtomicReference<Result>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CMDIValidatorJob job = new CMDIValidatorJob(this);
+    private ExecutorService watchedExecutor;
+    private volatile WarmUpStatistics warmUpStatistics;
 
     
     public CMDIValidator(final CMDIValidatorConfig config)
@@ -157,6 +508,28 @@ public final class CMDIValidator {
             this.schemaLoader = initSchemaLoader(config);
         }
 
+        /*
+         * initialize grammar pool, which is shared by all parsers
+         */
+        this.entityResolver = new XMLEntityResolver() {
+            @Override
+            public XMLInputSource resolveEntity(
+                    XMLResourceIdentifier identifier) throws XNIException,
+                    IOException {
+                final String uri = identifier.getExpandedSystemId();
+                if (uri == null) {
+                    throw new IOException(
+                            "bad schema location for namespace '" +
+                                    identifier.getNamespace() + "': " +
+                                    identifier.getLiteralSystemId());
+                }
+                InputStream stream = schemaLoader.loadSchemaFile(
+                        identifier.getNamespace(), uri);
+                return new XMLInputSource(null, null, null, stream, null);
+            }
+        };
+        this.grammarPool = initGrammarPool(config, schemaLoader, entityResolver);
+
         /*
          * initialize Saxon processor
          */
@@ -234,102 +607,877 @@ public final class CMDIValidator {
         /*
          * other stuff
          */
-        final TFile root = new TFile(src);
-        this.files       = new FileEnumerator(root, config.getFileFilter());
-        this.maxFileSize = config.getMaxFileSize();
+        this.root        = FileEntry.forRoot(src);
+        this.fileFilter  = config.getFileFilter();
+        if (config.getMemoryBudget() > 0) {
+            /* files are only skipped, if they exceed the whole budget */
+            this.memoryBudget = new MemoryBudget(config.getMemoryBudget(),
+                    config.getMemoryFactor());
+            this.maxFileSize  = 0;
+        } else {
+            this.memoryBudget = null;
+            this.maxFileSize  = config.getMaxFileSize();
+        }
+        FilePrefetcher prefetcher = null;
+        if (config.getPrefetchCount() > 0) {
+            prefetcher = new FilePrefetcher(config.getPrefetchThreads(),
+                    config.getPrefetchBudget(), maxFileSize);
+        }
+        this.files       = FileEnumerator.newInstance(root, fileFilter,
+                config.getEnumeratorQueueSize(),
+                config.getTraversalThreads(),
+                config.getLargestFirstWindow(),
+                prefetcher,
+                config.getPrefetchCount());
+        if (config.getWarmUpThreads() > 0) {
+            this.warmUp = new SchemaWarmUp(root, fileFilter,
+                    config.getWarmUpThreads(), grammarPool);
+        } else {
+            this.warmUp = null;
+        }
+        this.fileTimeLimit = config.getFileTimeLimit();
+        this.batchSize   = config.getBatchSize();
+        this.errorCausesDisabled = config.isErrorCausesDisabled();
         if (config.getHandler() == null) {
             throw new NullPointerException("handler == null");
         }
-        this.handler = handler;
+        this.handler = handler;
+        if (config.getReportQueueSize() > 0) {
+            this.dispatcher = new ReportDispatcher(handler,
+                    config.getReportQueueSize(),
+                    config.getReportThreads(),
+                    config.getReportBatchSize());
+        } else {
+            this.dispatcher = null;
+        }
+    }
+
+
+    public CMDIValidationHandler getHandler() {
+        return handler;
+    }
+
+
+    public Statistics getStatistics() {
+        return new Statistics(files.getFilesEnumeratedCount(),
+                files.getQueueDepth(),
+                files.getQueueCapacity(),
+                files.getStallCount(),
+                files.getStallTime(),
+                filesProcessed.get(),
+                bytesProcessed.get(),
+                filesTimedOutCount.get(),
+                files.getPrefetchedCount(),
+                files.getPrefetchBypassedCount(),
+                (memoryBudget != null) ? memoryBudget.getAdmittedMemory() : -1,
+                (memoryBudget != null) ? memoryBudget.getWaitCount() : -1,
+                (dispatcher != null) ? dispatcher.getQueueDepth() : -1,
+                (dispatcher != null) ? dispatcher.getQueueCapacity() : -1,
+                (dispatcher != null) ? dispatcher.getStallCount() : -1,
+                (dispatcher != null) ? dispatcher.getBatchCount() : -1,
+                (dispatcher != null) ? dispatcher.getHandlerTime() : -1);
+    }
+
+
+    public GrammarCacheStatistics getGrammarCacheStatistics() {
+        return grammarPool.getStatistics();
+    }
+
+
+    /*
+     * Returns the statistics of the schema warm-up or null, if no warm-up
+     * was performed (yet).
+     */
+    public WarmUpStatistics getWarmUpStatistics() {
+        return warmUpStatistics;
+    }
+
+
+    public CMDIValidatorJob getJob() {
+        return job;
+    }
+
+
+    public void abort() {
+        stop(Result.ABORTED);
+    }
+
+
+    boolean processOneFile() throws CMDIValidatorException {
+        try {
+            threadsProcessing.incrementAndGet();
+
+            /*
+             * the first thread starts the job, all other threads need to
+             * wait until the handler has been notified.
+             */
+            State current = state.get();
+            if ((current == State.INIT) || (current == State.START)) {
+                if (!startJob()) {
+                    awaitStarted();
+                }
+                current = state.get();
+            }
+
+            if (current == State.RUN) {
+                /*
+                 * claim a batch of files in one go and work through them
+                 * without further coordination with the other threads
+                 */
+                ThreadContext context = acquireContext();
+                final FileEntry[] batch = context.batch;
+                int count = 0;
+                try {
+                    count = files.nextFiles(batch);
+                    if (files.isEmpty()) {
+                        state.compareAndSet(State.RUN, State.DONE);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        /* stop, if job was aborted, failed or timed out */
+                        if ((result.get() != null) || checkDeadline()) {
+                            break;
+                        }
+                        validate(context, batch[i]);
+                        if (context.abandoned) {
+                            /* still busy with a file, that timed out */
+                            context = acquireContext();
+                        }
+                    }
+                } finally {
+                    Arrays.fill(batch, 0, count, null);
+                    releaseContext(context);
+                }
+                current = state.get();
+            }
+
+            return (current == State.DONE) || (current == State.FINI);
+        } catch (Throwable e) {
+            throw handleError(e);
+        } finally {
+            if (threadsProcessing.decrementAndGet() <= 0) {
+                if (state.compareAndSet(State.DONE, State.FINI)) {
+                    notifyFinished();
+                }
+            }
+        }
+    }
+
+
+    /*
+     * The following methods are used by processors, that do not pull files
+     * through processOneFile(), but traverse the file system by themselves.
+     * A processor needs to call startJob() first, then validate files using
+     * validateFile() as long as isRunning() is true and must finally call
+     * finishJob().
+     */
+
+    FileEntry getRoot() {
+        return root;
+    }
+
+
+    FileFilter getFileFilter() {
+        return fileFilter;
+    }
+
+
+    boolean startJob() throws CMDIValidatorException {
+        if (!state.compareAndSet(State.INIT, State.START)) {
+            return false;
+        }
+        try {
+            job.started();
+            if (warmUp != null) {
+                /* other threads wait until the warm-up is done */
+                logger.debug("warming up grammar pool ...");
+                warmUpStatistics = warmUp.run();
+            }
+            handler.onJobStarted();
+            state.compareAndSet(State.START, State.RUN);
+            return true;
+        } catch (Throwable e) {
+            throw handleError(e);
+        } finally {
+            started.countDown();
+        }
+    }
+
+
+    boolean isRunning() {
+        return (state.get() == State.RUN) && !checkDeadline();
+    }
+
+
+    Result getResult() {
+        return result.get();
+    }
+
+
+    int nextFiles(FileEntry[] batch) {
+        return files.nextFiles(batch);
+    }
+
+
+    void validateFile(FileEntry file) throws CMDIValidatorException {
+        try {
+            final ThreadContext context = acquireContext();
+            try {
+                validate(context, file);
+            } finally {
+                releaseContext(context);
+            }
+        } catch (Throwable e) {
+            throw handleError(e);
+        }
+    }
+
+
+    /*
+     * Validate a file using the context dedicated to the given lane. A
+     * processor must make sure, that a lane is only used by one thread at
+     * a time. Routing files of the same schema to the same lane keeps the
+     * grammar pool of the lane's context warm.
+     */
+    void validateFile(FileEntry file, int lane) throws CMDIValidatorException {
+        try {
+            final Integer key = Integer.valueOf(lane);
+            ThreadContext context = laneContexts.get(key);
+            if (context == null) {
+                context = new ThreadContext();
+                laneContexts.put(key, context);
+            }
+            validate(context, file);
+            if (context.abandoned) {
+                laneContexts.remove(key);
+            }
+        } catch (Throwable e) {
+            throw handleError(e);
+        }
+    }
+
+
+    /*
+     * Validate a file, but only occupy one of the given permits (and a
+     * context) while parsing and performing Schematron validation. The
+     * extensions, which may block on network I/O, run without a permit.
+     */
+    void validateFile(FileEntry file, Semaphore permits)
+            throws CMDIValidatorException {
+        try {
+            final CMDIWriteableValidatonReportImpl report =
+                    new CMDIWriteableValidatonReportImpl();
+            boolean permitted = false;
+            try {
+                admit(file, report);
+                permits.acquire();
+                permitted = true;
+            } finally {
+                if (!permitted) {
+                    file.release(true);
+                    releaseMemory(report);
+                }
+            }
+            if (!isRunning()) {
+                /* job was stopped while waiting for a permit */
+                permits.release();
+                file.release(true);
+                releaseMemory(report);
+                return;
+            }
+            CMDIWriteableValidatonReportImpl delivered = report;
+            boolean abandoned = false;
+            try {
+                final long start = System.currentTimeMillis();
+                XdmNode document = null;
+                try {
+                    final ThreadContext context = acquireContext();
+                    try {
+                        document = check(context, file, report, false,
+                                fileTimeLimit);
+                    } finally {
+                        abandoned = context.abandoned;
+                        releaseContext(context);
+                        file.release(!abandoned);
+                    }
+                } finally {
+                    permits.release();
+                }
+                if ((document != null) && (extensions != null)) {
+                    /* extensions get what is left of the time limit */
+                    long remaining = 0;
+                    if (fileTimeLimit > 0) {
+                        remaining = Math.max(1, fileTimeLimit -
+                                (System.currentTimeMillis() - start));
+                    }
+                    runExtensions(null, document, report, remaining);
+                }
+            } catch (TimeoutException e) {
+                delivered = timedOut(file, e);
+            } finally {
+                releaseMemory(report);
+                deliver(delivered);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw handleError(new CMDIValidatorException(
+                    "interrupted while waiting for permit", e));
+        } catch (Throwable e) {
+            throw handleError(e);
+        }
+    }
+
+
+    /*
+     * Called by a processor, that is shut down while it still has this
+     * validator. Nobody would call finishJob() anymore, so abort the job
+     * and finish it right away, so anybody waiting for the job is released.
+     */
+    void shutdownJob() throws CMDIValidatorException {
+        stop(Result.ABORTED);
+        finishJob();
+    }
+
+
+    void finishJob() throws CMDIValidatorException {
+        for (;;) {
+            final State current = state.get();
+            if (current == State.FINI) {
+                break;
+            }
+            if (state.compareAndSet(current, State.FINI)) {
+                notifyFinished();
+                break;
+            }
+        } // for
+    }
+
+
+    private void stop(Result reason) {
+        for (;;) {
+            final State current = state.get();
+            if ((current != State.INIT) &&
+                    (current != State.START) &&
+                    (current != State.RUN)) {
+                break;
+            }
+            result.compareAndSet(null, reason);
+            if (state.compareAndSet(current, State.DONE)) {
+                files.flush();
+                break;
+            }
+        } // for
+    }
+
+
+    private boolean checkDeadline() {
+        if (job.isExpired()) {
+            if (result.get() == null) {
+                logger.debug("deadline exceeded, skipping remaining files");
+            }
+            stop(Result.TIMEOUT);
+            return true;
+        }
+        return false;
+    }
+
+
+    private void notifyFinished() throws CMDIValidatorException {
+        CMDIValidatorException failure = null;
+        try {
+            /* all reports need to be delivered, before the job is finished */
+            if (dispatcher != null) {
+                try {
+                    dispatcher.drain();
+                } catch (CMDIValidatorException e) {
+                    result.compareAndSet(null, Result.ERROR);
+                    failure = e;
+                }
+            }
+            result.compareAndSet(null, Result.OK);
+            grammarPool.saveManifest();
+            synchronized (this) {
+                if (watchedExecutor != null) {
+                    /* threads stuck with abandoned files just run out */
+                    watchedExecutor.shutdown();
+                }
+            } // synchronized (this)
+
+            // notify handler
+            handler.onJobFinished(result.get());
+        } finally {
+            /* whatever happened, release anybody waiting for the job */
+            job.finished();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
+    private void awaitStarted() throws CMDIValidatorException {
+        try {
+            started.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CMDIValidatorException(
+                    "interrupted while waiting for job to start", e);
+        }
+    }
+
+
+    /*
+     * The following methods are used by processors, that perform the
+     * individual steps of validating a file in different stages. All steps
+     * use the same report, which must finally be handed to deliverReport().
+     */
+
+    /*
+     * Read a file into memory. A prefetched file is not copied, so the
+     * file must only be released, after the stream has been parsed.
+     */
+    InputStream readFile(FileEntry file,
+            CMDIWriteableValidatonReportImpl report)
+            throws CMDIValidatorException {
+        try {
+            final long size = file.getSize();
+            if (isTooLarge(size)) {
+                logger.debug("skipping file '{}' ({} bytes)", file, size);
+                report.setFile(file.getFile(), size, true);
+                file.release(true);
+                return null;
+            }
+            /* admitted memory is given back in deliverReport() */
+            admit(file, report);
+            boolean success = false;
+            logger.debug("reading file '{}' ({} bytes)", file, size);
+            report.setFile(file.getFile(), size, false);
+            try {
+                final InputStream data = file.openInMemory();
+                success = true;
+                return data;
+            } catch (IOException e) {
+                throw new CMDIValidatorException(
+                        "error reading file '" + file + "'", e);
+            } finally {
+                if (!success) {
+                    file.release(true);
+                    releaseMemory(report);
+                }
+            }
+        } catch (Throwable e) {
+            throw handleError(e);
+        }
+    }
+
+
+    /*
+     * The steps may be given the time already spent on the file by the
+     * previous steps, which counts against the time limit per file. If the
+     * time limit is exceeded, the report must be handed to
+     * deliverTimedOut() instead of deliverReport().
+     */
+    XdmNode parseFile(final InputStream data,
+            final CMDIWriteableValidatonReportImpl report, final long elapsed)
+            throws CMDIValidatorException, TimeoutException {
+        try {
+            final ThreadContext context = acquireContext();
+            try {
+                final long timeLimit = getFileTimeLimit(elapsed);
+                if (timeLimit <= 0) {
+                    return context.parse(data, report);
+                }
+                context.stage = "schema validation";
+                return runWatched(new Callable<XdmNode>() {
+                    @Override
+                    public XdmNode call() throws Exception {
+                        return context.parse(data, report);
+                    }
+                }, context, report, timeLimit);
+            } finally {
+                releaseContext(context);
+            }
+        } catch (TimeoutException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw handleError(e);
+        }
+    }
+
+
+    boolean hasSchematronValidation() {
+        return schematronValidatorExecutable != null;
+    }
+
+
+    void validateSchematron(final XdmNode document,
+            final CMDIWriteableValidatonReportImpl report, final long elapsed)
+            throws CMDIValidatorException, TimeoutException {
+        try {
+            final ThreadContext context = acquireContext();
+            try {
+                final long timeLimit = getFileTimeLimit(elapsed);
+                if (timeLimit <= 0) {
+                    context.checkSchematron(document, report);
+                    return;
+                }
+                context.stage = "schematron validation";
+                runWatched(new Callable<XdmNode>() {
+                    @Override
+                    public XdmNode call() throws Exception {
+                        context.checkSchematron(document, report);
+                        return document;
+                    }
+                }, context, report, timeLimit);
+            } finally {
+                releaseContext(context);
+            }
+        } catch (TimeoutException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw handleError(e);
+        }
+    }
+
+
+    boolean hasExtensions() {
+        return extensions != null;
+    }
+
+
+    void validateExtensions(final XdmNode document,
+            final CMDIWriteableValidatonReportImpl report, final long elapsed)
+            throws CMDIValidatorException, TimeoutException {
+        try {
+            final long timeLimit = getFileTimeLimit(elapsed);
+            if (timeLimit <= 0) {
+                runExtensions(document, report);
+                return;
+            }
+            runWatched(new Callable<XdmNode>() {
+                @Override
+                public XdmNode call() throws Exception {
+                    runExtensions(document, report);
+                    return document;
+                }
+            }, null, report, timeLimit);
+        } catch (TimeoutException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw handleError(e);
+        }
+    }
+
+
+    void deliverReport(CMDIWriteableValidatonReportImpl report)
+            throws CMDIValidatorException {
+        try {
+            releaseMemory(report);
+            deliver(report);
+        } catch (Throwable e) {
+            throw handleError(e);
+        }
+    }
+
+
+    /*
+     * Deliver a replacement report for a file, that timed out in one of
+     * the steps. The original report may still be used by the abandoned
+     * thread.
+     */
+    void deliverTimedOut(CMDIWriteableValidatonReportImpl report,
+            FileEntry file, TimeoutException timeout)
+            throws CMDIValidatorException {
+        try {
+            releaseMemory(report);
+            deliver(timedOut(file, timeout));
+        } catch (Throwable e) {
+            throw handleError(e);
+        }
+    }
+
+
+    /*
+     * Give back the memory admitted for a file. If validating the file
+     * timed out, the abandoned thread keeps it, until it really ends.
+     */
+    private void releaseMemory(CMDIWriteableValidatonReportImpl report) {
+        final MemoryBudget.Admission admission = report.getAdmission();
+        if (admission != null) {
+            report.setAdmission(null);
+            admission.release();
+        }
+    }
+
+
+    private void validate(final ThreadContext context, final FileEntry file)
+            throws CMDIValidatorException {
+        final CMDIWriteableValidatonReportImpl report =
+                new CMDIWriteableValidatonReportImpl();
+        CMDIWriteableValidatonReportImpl delivered = report;
+        admit(file, report);
+        try {
+            if (fileTimeLimit > 0) {
+                check(context, file, report, true, fileTimeLimit);
+            } else {
+                runExtensions(context.check(file, report), report);
+            }
+        } catch (TimeoutException e) {
+            delivered = timedOut(file, e);
+        } finally {
+            file.release(!context.abandoned);
+            releaseMemory(report);
+            deliver(delivered);
+        }
+    }
+
+
+    /*
+     * The time limit for a step of validating a file, if the previous steps
+     * already took some time. The deadline of the job does not cut short
+     * files, that are already being validated; they just are the last ones.
+     */
+    private long getFileTimeLimit(long elapsed) {
+        if ((fileTimeLimit > 0) && (elapsed > 0)) {
+            return Math.max(1, fileTimeLimit - elapsed);
+        }
+        return fileTimeLimit;
+    }
+
+
+    private boolean isTooLarge(long size) {
+        if (memoryBudget != null) {
+            return !memoryBudget.fits(size);
+        } else {
+            return (maxFileSize > 0) && (size > maxFileSize);
+        }
+    }
+
+
+    /*
+     * Wait until the estimated memory for validating the file is available
+     * and record the admission with the report. Nothing is admitted, if
+     * there is no memory budget or the file will be skipped anyway.
+     */
+    private void admit(final FileEntry file,
+            final CMDIWriteableValidatonReportImpl report)
+            throws CMDIValidatorException {
+        if ((memoryBudget == null) || isTooLarge(file.getSize())) {
+            return;
+        }
+        try {
+            report.setAdmission(memoryBudget.acquire(file.getSize()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CMDIValidatorException(
+                    "interrupted while waiting for memory", e);
+        }
+    }
+
+
+    /*
+     * Perform the checks of the context (and optionally run extensions) on
+     * another thread and wait at most for the given time limit. If the time
+     * limit is exceeded, that thread is interrupted and abandoned together
+     * with the context and report it was using, because neither Xerces nor
+     * Saxon can be safely stopped half way. The caller must replace the
+     * context, as it may still be in use by the abandoned thread.
+     * The file being read is closed, so the parser of the abandoned thread
+     * fails soon. If too many abandoned threads are still running, files
+     * fail right away instead of starting even more threads.
+     */
+    private XdmNode check(final ThreadContext context, final FileEntry file,
+            final CMDIWriteableValidatonReportImpl report,
+            final boolean withExtensions, final long timeLimit)
+            throws CMDIValidatorException, TimeoutException {
+        if (timeLimit <= 0) {
+            return context.check(file, report);
+        }
+        context.stage = "reading";
+        return runWatched(new Callable<XdmNode>() {
+            @Override
+            public XdmNode call() throws Exception {
+                final XdmNode document = context.check(file, report);
+                if (withExtensions) {
+                    context.stage = "extensions";
+                    runExtensions(document, report);
+                }
+                return document;
+            }
+        }, context, report, timeLimit);
     }
 
 
-    public CMDIValidationHandler getHandler() {
-        return handler;
+    private void runExtensions(final ThreadContext context,
+            final XdmNode document,
+            final CMDIWriteableValidatonReportImpl report,
+            final long timeLimit)
+            throws CMDIValidatorException, TimeoutException {
+        if (timeLimit <= 0) {
+            runExtensions(document, report);
+            return;
+        }
+        runWatched(new Callable<XdmNode>() {
+            @Override
+            public XdmNode call() throws Exception {
+                runExtensions(document, report);
+                return document;
+            }
+        }, context, report, timeLimit);
     }
 
 
-    public void abort() {
-        synchronized (this) {
-            if ((state == State.INIT) || (state == State.RUN)) {
-                state = State.DONE;
-                files.flush();
-                if (result == null) {
-                    result = Result.ABORTED;
-                }
+    private XdmNode runWatched(final Callable<XdmNode> task,
+            final ThreadContext context,
+            final CMDIWriteableValidatonReportImpl report,
+            final long timeLimit)
+            throws CMDIValidatorException, TimeoutException {
+        final int abandoned = abandonedCount.get();
+        if (abandoned >= MAX_ABANDONED_TASKS) {
+            throw new TimeoutException("validation not started, because " +
+                    abandoned + " validations, that timed out, are still " +
+                    "running");
+        }
+        final WatchedTask watched =
+                new WatchedTask(task, report.getAdmission());
+        final Future<XdmNode> future;
+        try {
+            future = getWatchedExecutor().submit(watched);
+        } catch (RejectedExecutionException e) {
+            throw new CMDIValidatorException("validator was shut down", e);
+        }
+        try {
+            return future.get(timeLimit, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            final String stage;
+            if (context != null) {
+                context.abandoned = true;
+                stage = context.stage;
+                watched.abandon();
+                context.closeInput();
+            } else {
+                stage = "extensions";
+                watched.abandon();
+            }
+            throw new TimeoutException("validation timed out after " +
+                    timeLimit + " ms (stage: " + stage + ")");
+        } catch (InterruptedException e) {
+            if (context != null) {
+                context.abandoned = true;
+                watched.abandon();
+                context.closeInput();
+            } else {
+                watched.abandon();
+            }
+            Thread.currentThread().interrupt();
+            throw new CMDIValidatorException(
+                    "interrupted while validating file", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof CMDIValidatorException) {
+                throw (CMDIValidatorException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new CMDIValidatorException(
+                        "an unexpected error occurred", cause);
             }
-        } // synchronized (this)
+        }
     }
 
 
-    boolean processOneFile() throws CMDIValidatorException {
-        try {
-            TFile file = null;
-            boolean done;
+    private CMDIWriteableValidatonReportImpl timedOut(final FileEntry file,
+            final TimeoutException e) {
+        final CMDIWriteableValidatonReportImpl report =
+                new CMDIWriteableValidatonReportImpl();
+        logger.debug("{}: file '{}'", e.getMessage(), file);
+        filesTimedOutCount.incrementAndGet();
+        report.setFile(file.getFile(), file.getSize(), false);
+        report.reportError(-1, -1, e.getMessage());
+        return report;
+    }
 
-            threadsProcessing.incrementAndGet();
 
-            synchronized (this) {
-                switch (state) {
-                case INIT:
-                    try {
-                        state = State.RUN;
-                        handler.onJobStarted();
-                    } catch (CMDIValidatorException e) {
-                        state = State.DONE;
-                        throw e;
-                    }
-                    /* FALL-THROUGH */
-                case RUN:
-                    file = files.nextFile();
-                    if (files.isEmpty() && (state == State.RUN)) {
-                        state = State.DONE;
-                    }
-                    break;
-                default:
-                    // ignore
+    private synchronized ExecutorService getWatchedExecutor() {
+        if (watchedExecutor == null) {
+            watchedExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactory() {
+                private final AtomicInteger id = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable target) {
+                    final Thread thread = new Thread(target,
+                            String.format("watched-%02x",
+                                    id.getAndIncrement()));
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+        }
+        return watchedExecutor;
+    }
 
-                done = (state == State.DONE);
-            } // synchronized (this)
 
-            if (file != null) {
-                ThreadContext context = contexts.get(Thread.currentThread());
-                if (context == null) {
-                    context = new ThreadContext();
-                    contexts.put(Thread.currentThread(), context);
-                }
-                context.validate(file);
-            }
+    private void deliver(final CMDIWriteableValidatonReportImpl report)
+            throws CMDIValidatorException {
+        filesProcessed.incrementAndGet();
+        if (!report.isFileSkipped() && (report.getFileSize() > 0)) {
+            bytesProcessed.addAndGet(report.getFileSize());
+        }
+        if (dispatcher != null) {
+            dispatcher.dispatch(report);
+        } else {
+            handler.onValidationReport(report);
+        }
+    }
 
-            return done;
-        } catch (Throwable e) {
-            synchronized (this) {
-                state = State.DONE;
-                if (result == null) {
-                    result = Result.ERROR;
-                }
-            } // synchronized (this)
-            if (e instanceof CMDIValidatorException) {
-                throw (CMDIValidatorException) e;
-            } else {
-                throw new CMDIValidatorException(
-                        "an unexpected error occurred", e);
+
+    private void runExtensions(final XdmNode document,
+            final CMDIWriteableValidationReport report)
+            throws CMDIValidatorException {
+        /*
+         * step 3: run extensions, if any
+         */
+        if ((document != null) && (extensions != null)) {
+            for (CMDIValidatorExtension extension : extensions) {
+                extension.validate(document, report);
             }
-        } finally {
-            if (threadsProcessing.decrementAndGet() <= 0) {
-                synchronized (this) {
-                    if (state == State.DONE) {
-                        state = State.FINI;
-                        if (result == null) {
-                            result = Result.OK;
-                        }
+        }
+    }
 
-                        // notify handler
-                        handler.onJobFinished(result);
-                    }
-                } // synchronized (this)
+
+    /*
+     * Contexts are not bound to a thread, but checked out from a pool for
+     * the time they are needed, i.e. a processor may use more threads than
+     * contexts.
+     */
+    private ThreadContext acquireContext() {
+        final ThreadContext context = contexts.poll();
+        return (context != null) ? context : new ThreadContext();
+    }
+
+
+    private void releaseContext(ThreadContext context) {
+        if (!context.abandoned) {
+            contexts.offer(context);
+        }
+    }
+
+
+    private CMDIValidatorException handleError(Throwable e) {
+        result.compareAndSet(null, Result.ERROR);
+        for (;;) {
+            final State current = state.get();
+            if ((current == State.DONE) || (current == State.FINI) ||
+                    state.compareAndSet(current, State.DONE)) {
+                break;
             }
+        } // for
+        if (e instanceof CMDIValidatorException) {
+            return (CMDIValidatorException) e;
+        } else {
+            return new CMDIValidatorException(
+                    "an unexpected error occurred", e);
         }
     }
 
@@ -380,6 +1528,53 @@ public final class CMDIValidator {
     }
 
 
+    private static SharedXMLGrammarPool initGrammarPool(
+            final CMDIValidatorConfig config,
+            final CMDISchemaLoader schemaLoader,
+            final XMLEntityResolver entityResolver)
+            throws CMDIValidatorInitException {
+        GrammarManifest manifest = null;
+        if (!config.isSchemaManifestDisabled() &&
+                (schemaLoader.getCacheDirectory() != null)) {
+            manifest = GrammarManifest.load(schemaLoader.getCacheDirectory());
+        }
+        final SharedXMLGrammarPool pool =
+                new SharedXMLGrammarPool(entityResolver,
+                        config.getGrammarCacheSize(),
+                        config.getGrammarCacheWeight(),
+                        config.getGrammarCachePolicy(),
+                        manifest);
+
+        /*
+         * pre-load the schema for the XML namespace and make it a permanent
+         * member of the pool
+         */
+        InputStream stream = null;
+        try {
+            stream = schemaLoader.loadSchemaFile(
+                    XMLConstants.XML_NS_URI, XML_SCHEMA_LOCATION);
+            pool.loadPermanentGrammar(XMLConstants.XML_NS_URI,
+                    XML_SCHEMA_LOCATION, stream);
+            pool.lockPool();
+        } catch (IOException e) {
+            throw new CMDIValidatorInitException(
+                    "error loading schema for XML namespace", e);
+        } catch (XNIException e) {
+            throw new CMDIValidatorInitException(
+                    "error loading schema for XML namespace", e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    /* IGNORE */
+                }
+            }
+        }
+        return pool;
+    }
+
+
     private static XsltExecutable initSchematronValidator(
             final CMDIValidatorConfig config, final Processor processor)
             throws CMDIValidatorInitException {
@@ -460,134 +1655,116 @@ public final class CMDIValidator {
 
 
     private enum State {
-        INIT, RUN, DONE, FINI;
+        INIT, START, RUN, DONE, FINI;
     }
 
 
     private final class ThreadContext {
+        private final FileEntry[] batch = new FileEntry[batchSize];
         private final SAXParser parser;
         private final XsltTransformer schematronValidator;
         private final DocumentBuilder builder;
+        /* nobody needs the document, if only schema validation is done */
+        private final boolean streaming;
         private CMDIWriteableValidationReport report;
+        /* the current step, in case validation of a file times out */
+        private volatile String stage;
+        private volatile InputStream input;
+        private volatile boolean abandoned = false;
 
 
         private ThreadContext() {
             /*
-             * initialize Xerces
+             * initialize Xerces, all parsers share the grammar pool and
+             * the symbol table
              */
-            XMLEntityResolver resolver = new XMLEntityResolver() {
-                @Override
-                public XMLInputSource resolveEntity(
-                        XMLResourceIdentifier identifier) throws XNIException,
-                        IOException {
-                    final String uri = identifier.getExpandedSystemId();
-                    if (uri == null) {
-                        throw new IOException(
-                                "bad schema location for namespace '" +
-                                        identifier.getNamespace() + "': " +
-                                        identifier.getLiteralSystemId());
-                    }
-                    InputStream stream = schemaLoader.loadSchemaFile(
-                            identifier.getNamespace(), uri);
-                    return new XMLInputSource(null, null, null, stream, null);
-                }
-            };
-
-            SymbolTable symbols = new SymbolTable(INITAL_SYMBOL_TABLE_SIZE);
-            ShadowCacheXMLGrammarPool pool = new ShadowCacheXMLGrammarPool(8);
-
-            XMLSchemaLoader xsdLoader = new XMLSchemaLoader(symbols);
-            xsdLoader.setParameter(GRAMMAR_POOL, pool);
-            xsdLoader.setEntityResolver(resolver);
-            xsdLoader.setErrorHandler(new XMLErrorHandler() {
-                @Override
-                public void warning(String domain, String key,
-                        XMLParseException e) throws XNIException {
-                    /* ignore warnings */
-                }
-
-
-                @Override
-                public void error(String domain, String key, XMLParseException e)
-                        throws XNIException {
-                    throw e;
-                }
-
-
-                @Override
-                public void fatalError(String domain, String key,
-                        XMLParseException e) throws XNIException {
-                    throw e;
-                }
-            });
-
-            try {
-                InputStream stream = null;
-                try {
-                    stream = schemaLoader.loadSchemaFile(
-                            XMLConstants.XML_NS_URI, XML_SCHEMA_LOCATION);
-                    Grammar grammar = xsdLoader.loadGrammar(new XMLInputSource(
-                            XMLConstants.XML_NS_URI, XML_SCHEMA_LOCATION, null,
-                            stream, null));
-                    if (grammar != null) {
-                        pool.cacheGrammars(XML_SCHEMA_GRAMMAR_TYPE,
-                                new Grammar[] { grammar });
-                    }
-                    pool.lockPool();
-                } finally {
-                    if (stream != null) {
-                        stream.close();
-                    }
-                }
-            } catch (IOException e) {
-                /*
-                 * Should never happen
-                 */
-                logger.error("error initaliting thread context", e);
-            }
-
             XML11Configuration xercesConfig =
-                    new XML11Configuration(symbols, pool);
+                    new XML11Configuration(symbols, grammarPool);
             xercesConfig.setFeature(NAMESPACES_FEATURE_ID, true);
             xercesConfig.setFeature(VALIDATION_FEATURE_ID, true);
             xercesConfig.setFeature(SCHEMA_VALIDATION_FEATURE_ID, true);
             xercesConfig.setFeature(SCHEMA_FULL_CHECKING_FEATURE_ID, true);
             xercesConfig.setFeature(HONOUR_ALL_SCHEMA_LOCATIONS_ID, true);
-            xercesConfig.setEntityResolver(resolver);
+            xercesConfig.setEntityResolver(entityResolver);
 
             /*
              * create a reusable parser and also add an error handler.
              * We cannot use a global error handler in xerces config, because
              * Saxon ignores and overwrites it ...
              */
-            this.parser = new SAXParser(xercesConfig);
-            this.parser.setErrorHandler(new ErrorHandler() {
-                @Override
-                public void warning(SAXParseException e) throws SAXException {
-                    reportWarning(e.getLineNumber(),
-                            e.getColumnNumber(),
-                            e.getMessage(),
-                            e);
-                }
+            this.streaming = (schematronValidatorExecutable == null) &&
+                    (extensions == null);
+            if (errorCausesDisabled) {
+                /*
+                 * plug the error handler directly into Xerces, which saves
+                 * wrapping every error into a SAXParseException. The parser
+                 * keeps it, even if Saxon tries to install its own one.
+                 */
+                this.parser = new ErrorHandlerKeepingSAXParser(xercesConfig);
+                xercesConfig.setProperty(ERROR_HANDLER_PROPERTY_ID,
+                        new XMLErrorHandler() {
+                    @Override
+                    public void warning(String domain, String key,
+                            XMLParseException e) throws XNIException {
+                        reportWarning(e.getLineNumber(),
+                                e.getColumnNumber(),
+                                withKey(key, e.getMessage()),
+                                null);
+                    }
 
-                @Override
-                public void error(SAXParseException e) throws SAXException {
-                    reportError(e.getLineNumber(),
-                            e.getColumnNumber(),
-                            e.getMessage(),
-                            e);
-                    throw e;
-                }
+                    @Override
+                    public void error(String domain, String key,
+                            XMLParseException e) throws XNIException {
+                        reportError(e.getLineNumber(),
+                                e.getColumnNumber(),
+                                withKey(key, e.getMessage()),
+                                null);
+                        throw ParseAbortedException.XNI_SIGNAL;
+                    }
 
-                @Override
-                public void fatalError(SAXParseException e) throws SAXException {
-                    reportError(e.getLineNumber(),
-                            e.getColumnNumber(),
-                            e.getMessage(),
-                            e);
-                    throw e;
-                }
-            });
+                    @Override
+                    public void fatalError(String domain, String key,
+                            XMLParseException e) throws XNIException {
+                        reportError(e.getLineNumber(),
+                                e.getColumnNumber(),
+                                withKey(key, e.getMessage()),
+                                null);
+                        throw ParseAbortedException.XNI_SIGNAL;
+                    }
+                });
+            } else {
+                this.parser = new SAXParser(xercesConfig);
+                this.parser.setErrorHandler(new ErrorHandler() {
+                    @Override
+                    public void warning(SAXParseException e)
+                            throws SAXException {
+                        reportWarning(e.getLineNumber(),
+                                e.getColumnNumber(),
+                                e.getMessage(),
+                                e);
+                    }
+
+                    @Override
+                    public void error(SAXParseException e)
+                            throws SAXException {
+                        reportError(e.getLineNumber(),
+                                e.getColumnNumber(),
+                                e.getMessage(),
+                                e);
+                        throw e;
+                    }
+
+                    @Override
+                    public void fatalError(SAXParseException e)
+                            throws SAXException {
+                        reportError(e.getLineNumber(),
+                                e.getColumnNumber(),
+                                e.getMessage(),
+                                e);
+                        throw e;
+                    }
+                });
+            }
 
             /*
              * initialize and configure Saxon document builder
@@ -614,71 +1791,98 @@ public final class CMDIValidator {
         }
 
 
-        private void validate(final TFile file) throws CMDIValidatorException {
+        /*
+         * Perform the checks, that need the parser and Schematron validator
+         * of this context, i.e. schema validation and Schematron validation.
+         * Returns the parsed document for further processing by extensions
+         * or null, if the file was skipped, could not be parsed or was only
+         * streamed through the parser.
+         */
+        private XdmNode check(final FileEntry file,
+                final CMDIWriteableValidatonReportImpl report)
+                throws CMDIValidatorException {
             try {
-                report = new CMDIWriteableValidatonReportImpl();
-
-                if ((maxFileSize > 0) && (file.length() > maxFileSize)) {
-                    logger.debug("skipping file '{}' ({} bytes)",
-                            file, file.length());
-                    report.setFile(file, true);
-                } else {
-                    TFileInputStream stream = null;
-                    try {
-                        logger.debug("validating file '{}' ({} bytes)", file,
-                                file.length());
-                        report.setFile(file, false);
+                this.report = report;
 
-                        /*
-                         * step 0: prepare
-                         */
-                        stream = new TFileInputStream(file);
+                /*
+                 * the size was obtained while enumerating, so no need to
+                 * stat the file (again) ...
+                 */
+                final long size = file.getSize();
+                if (isTooLarge(size)) {
+                    logger.debug("skipping file '{}' ({} bytes)", file, size);
+                    report.setFile(file.getFile(), size, true);
+                    return null;
+                }
 
-                        /*
-                         * step 1: parse document and perform schema validation
-                         */
-                        final XdmNode document = parseInstance(stream);
-
-                        if (document != null) {
-                            /*
-                             * step 2: perform Schematron validation
-                             */
-                            if (schematronValidator != null) {
-                                validateSchematron(document);
-                            }
-
-                            /*
-                             * step 3: run extensions, if any
-                             */
-                            if (extensions != null) {
-                                for (CMDIValidatorExtension extension : extensions) {
-                                    extension.validate(document, report);
-                                }
-                            }
+                InputStream stream = null;
+                try {
+                    logger.debug("validating file '{}' ({} bytes)",
+                            file, size);
+                    report.setFile(file.getFile(), size, false);
+
+                    /*
+                     * step 0: prepare
+                     */
+                    stage = "reading";
+                    stream = file.openStream();
+                    input = stream;
+
+                    /*
+                     * step 1: parse document and perform schema validation
+                     */
+                    stage = "schema validation";
+                    final XdmNode document = parseInstance(stream);
+
+                    /*
+                     * step 2: perform Schematron validation
+                     */
+                    if ((document != null) && (schematronValidator != null)) {
+                        stage = "schematron validation";
+                        validateSchematron(document);
+                    }
+                    return document;
+                } catch (IOException e) {
+                    throw new CMDIValidatorException(
+                            "error reading file '" + file + "'", e);
+                } finally {
+                    input = null;
+                    try {
+                        if (stream != null) {
+                            stream.close();
                         }
                     } catch (IOException e) {
                         throw new CMDIValidatorException(
-                                "error reading file '" + file + "'", e);
-                    } catch (CMDIValidatorException e) {
-                        throw e;
-                    } finally {
-                        try {
-                            if (stream != null) {
-                                stream.close();
-                            }
-                        } catch (IOException e) {
-                            throw new CMDIValidatorException(
-                                    "error closing file '" + file + "'", e);
-                        }
+                                "error closing file '" + file + "'", e);
                     }
                 }
             } finally {
-                if ((report != null) && (handler != null)) {
-                    try {
-                        handler.onValidationReport(report);
-                    } finally {
-                        report = null;
-                    }
+                this.report = null;
+            }
+        }
+
+
+        private XdmNode parse(final InputStream stream,
+                final CMDIWriteableValidationReport report)
+                throws CMDIValidatorException {
+            try {
+                this.report = report;
+                return parseInstance(stream);
+            } finally {
+                this.report = null;
+            }
+        }
+
+
+        private void checkSchematron(final XdmNode document,
+                final CMDIWriteableValidationReport report)
+                throws CMDIValidatorException {
+            if (schematronValidator != null) {
+                try {
+                    this.report = report;
+                    validateSchematron(document);
+                } finally {
+                    this.report = null;
                 }
             }
         }
@@ -688,6 +1892,14 @@ public final class CMDIValidator {
                 throws CMDIValidatorException {
             try {
                 try {
+                    if (streaming) {
+                        /*
+                         * just stream the document through the validating
+                         * parser without building a tree
+                         */
+                        parser.parse(new InputSource(stream));
+                        return null;
+                    }
                     final SAXSource source =
                             new SAXSource(parser, new InputSource(stream));
                     return builder.build(source);
@@ -703,9 +1915,16 @@ public final class CMDIValidator {
                         stream.close();
                     }
                 }
+            } catch (ParseAbortedException e) {
+                /* already reported by the error handler */
+                return null;
             } catch (SaxonApiException e) {
                 logger.trace("error parsing instance", e);
                 return null;
+            } catch (SAXException e) {
+                /* already reported by the error handler */
+                logger.trace("error parsing instance", e);
+                return null;
             } catch (UncheckedXPathException e) {
                 logger.trace("error parsing instance", e);
                 return null;
@@ -786,11 +2005,38 @@ public final class CMDIValidator {
         }
 
 
+        /*
+         * Xerces only puts the key into the message of schema errors, so
+         * add it for all the others
+         */
+        private String withKey(String key, String message) {
+            if ((key == null) || (message == null) ||
+                    message.startsWith(key)) {
+                return message;
+            }
+            return key + ": " + message;
+        }
+
+
+        /* called by the watching thread, if this context is abandoned */
+        private void closeInput() {
+            final InputStream stream = input;
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    /* IGNORE */
+                }
+            }
+        }
+
+
         private void reportWarning(int line, int col, String message,
                 Throwable cause) {
             logger.debug("reporting warning: [{}:{}]: {}", line, col, message);
             if (report != null) {
-                report.reportWarning(line, col, message, cause);
+                report.reportWarning(line, col, message,
+                        errorCausesDisabled ? null : cause);
             }
         }
 
@@ -799,237 +2045,127 @@ public final class CMDIValidator {
                 Throwable cause) {
             logger.debug("reporting error: [{}:{}]: {}", line, col, message);
             if (report != null) {
-                report.reportError(line, col, message, cause);
+                report.reportError(line, col, message,
+                        errorCausesDisabled ? null : cause);
             }
         }
     }
 
 
-    private static final class FileEnumerator {
-        private final class FileList {
-            private final TFile[] fileList;
-            private int idx = 0;
-
-
-            private FileList(TFile[] fileList) {
-                this.fileList = fileList;
-            }
-
-
-            private TFile nextFile() {
-                while (idx < fileList.length) {
-                    final TFile file = fileList[idx++];
-                    if (file.isDirectory()) {
-                        return file;
-                    }
-                    if ((filter != null) && !filter.accept(file)) {
-                        continue;
-                    }
-                    return file;
-                } // while
-                return null;
-            }
-
-            private int size() {
-                return (fileList.length - idx);
-            }
-        }
-        private final FileFilter filter;
-        private final LinkedList<FileList> stack =
-                new LinkedList<FileList>();
-
-
-        FileEnumerator(TFile root, FileFilter filter) {
-            if (root == null) {
-                throw new NullPointerException("root == null");
-            }
-            if (root.isDirectory()) {
-                pushDirectory(root);
-            } else {
-                stack.add(new FileList(new TFile[] { root }));
-            }
-            this.filter = filter;
-        }
-
-
-        boolean isEmpty() {
-            return stack.isEmpty();
+    /*
+     * Keeps track of the validations, that timed out, but are still
+     * running. The thread, that ends the task, and the watching thread,
+     * that abandons it, race for the flag, so each task is counted once.
+     * An abandoned task holds on to the memory admitted for the file, as
+     * it may still be building the document tree.
+     */
+    private final class WatchedTask implements Callable<XdmNode> {
+        private final Callable<XdmNode> task;
+        private final MemoryBudget.Admission admission;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile Thread runner;
+
+
+        private WatchedTask(Callable<XdmNode> task,
+                MemoryBudget.Admission admission) {
+            this.task      = task;
+            this.admission = admission;
         }
 
 
-        TFile nextFile() {
-            for (;;) {
-                if (stack.isEmpty()) {
-                    break;
+        @Override
+        public XdmNode call() throws Exception {
+            runner = Thread.currentThread();
+            try {
+                if (done.get()) {
+                    /* abandoned, before it even started */
+                    return null;
                 }
-                final FileList list = stack.peek();
-                final TFile file = list.nextFile();
-                if ((list.size() == 0) || (file == null)) {
-                    stack.pop();
-                    if (file == null) {
-                        continue;
+                return task.call();
+            } finally {
+                runner = null;
+                if (!done.compareAndSet(false, true)) {
+                    abandonedCount.decrementAndGet();
+                    if (admission != null) {
+                        admission.release();
                     }
                 }
-                if (file.isDirectory()) {
-                    pushDirectory(file);
-                    continue;
-                }
-                return file;
             }
-            return null;
         }
 
 
-        void flush() {
-            stack.clear();
-        }
-
-
-        private void pushDirectory(TFile directory) {
-            final TFile[] files = directory.listFiles();
-            if ((files != null) && (files.length > 0)) {
-                stack.push(new FileList(files));
+        private void abandon() {
+            /* hold on before the task may end and release it */
+            if (admission != null) {
+                admission.retain();
             }
-        }
-
-    } // class FileEnumerator
-
-
-    private static final class ShadowCacheXMLGrammarPool implements
-            XMLGrammarPool {
-        private final Set<Grammar> cache =
-                new LinkedHashSet<Grammar>();
-        private final Map<String, Grammar> shadowCache;
-        private boolean locked = false;
-
-
-        private ShadowCacheXMLGrammarPool(int shadowCacheSize) {
-            this.shadowCache = new LRUCache<String, Grammar>(shadowCacheSize);
-        }
-
-
-        @Override
-        public Grammar[] retrieveInitialGrammarSet(String grammarType) {
-            if (XML_SCHEMA_GRAMMAR_TYPE.equals(grammarType) &&
-                    !cache.isEmpty()) {
-                final Grammar[] result = new Grammar[cache.size()];
-                return cache.toArray(result);
-            } else {
-                return null;
+            if (done.compareAndSet(false, true)) {
+                abandonedCount.incrementAndGet();
+                final Thread thread = runner;
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            } else if (admission != null) {
+                /* task has already ended */
+                admission.release();
             }
         }
+    }
 
 
-        @Override
-        public Grammar retrieveGrammar(XMLGrammarDescription d) {
-            logger.trace("search for grammar: {} / {} / {} / {}",
-                    d.getNamespace(),
-                    d.getLiteralSystemId(),
-                    d.getExpandedSystemId(),
-                    d.getBaseSystemId());
-            if ((d.getNamespace() == null) || !(d instanceof XSDDescription)) {
-                logger.trace("-> miss (invalid arguments supplied by caller)");
-                return null;
-            }
-
-            final XSDDescription desc = (XSDDescription) d;
-            final String namespace = desc.getNamespace();
-            Grammar result = findGrammerFromCache(desc);
-            if (result != null) {
-                logger.trace("-> match from cache: {} -> {} / {}",
-                        namespace,
-                        desc.getNamespace(),
-                        desc.getLiteralSystemId());
-                return result;
-            }
-
-            String locationHint = null;
-            if (desc.getLocationHints() != null) {
-                String[] h = desc.getLocationHints();
-                if (h.length > 0) {
-                    locationHint = h[0];
-                }
-                logger.trace("-> hint: {}", locationHint);
-            } else if (desc.getLiteralSystemId() != null) {
-                locationHint = desc.getLiteralSystemId();
+    /*
+     * Signals the parser to stop after an error has been reported. The
+     * instances are shared and carry no stack trace, because the error itself
+     * has already been recorded in the report. Xerces unwraps the XNI signal
+     * into the SAX signal, and Saxon passes on the runtime exception nested
+     * in it as is, so nobody needs to create a new exception on the way out.
+     */
+    @SuppressWarnings("serial")
+    private static final class ParseAbortedException extends RuntimeException {
+        private static final ParseAbortedException INSTANCE =
+                new ParseAbortedException();
+        private static final SAXException SIGNAL =
+                new SAXException(INSTANCE) {
+            @Override
+            public synchronized Throwable fillInStackTrace() {
+                return this;
             }
-
-            if (locationHint != null) {
-                Grammar grammar = shadowCache.get(locationHint);
-                if (grammar != null) {
-                    logger.trace("-> match from shadow cache: {} -> {}",
-                            grammar.getGrammarDescription().getNamespace(),
-                            locationHint);
-                    return grammar;
-                }
+        };
+        private static final XNIException XNI_SIGNAL =
+                new XNIException(SIGNAL) {
+            @Override
+            public synchronized Throwable fillInStackTrace() {
+                return this;
             }
-            logger.trace("-> miss");
-            return null;
-        }
+        };
 
 
-        @Override
-        public void lockPool() {
-            locked = true;
+        private ParseAbortedException() {
+            super("parsing aborted");
         }
 
 
         @Override
-        public void unlockPool() {
-            locked = false;
+        public synchronized Throwable fillInStackTrace() {
+            return this;
         }
+    }
 
 
-        @Override
-        public void clear() {
-            if (!locked) {
-                cache.clear();
-            }
+    /*
+     * Keeps the error handler installed in the Xerces configuration, as
+     * Saxon replaces the error handler of the parser before every parse.
+     */
+    private static final class ErrorHandlerKeepingSAXParser extends SAXParser {
+        private ErrorHandlerKeepingSAXParser(XML11Configuration config) {
+            super(config);
         }
 
 
         @Override
-        public void cacheGrammars(String grammarType, Grammar[] grammars) {
-            if (XML_SCHEMA_GRAMMAR_TYPE.equals(grammarType) &&
-                    (grammars != null) &&
-                    (grammars.length > 0)) {
-                for (Grammar grammar : grammars) {
-                    final XMLGrammarDescription gd =
-                            grammar.getGrammarDescription();
-                    if (findGrammerFromCache(gd) == null) {
-                        if (!locked) {
-                            logger.trace("cached grammar: {} / {}",
-                                    gd.getNamespace(),
-                                    gd.getLiteralSystemId());
-                            cache.add(grammar);
-                        } else {
-                            final String literalSystemId =
-                                        gd.getLiteralSystemId();
-                            if (!shadowCache.containsKey(literalSystemId)) {
-                                logger.trace("shadow cached grammar: {} / {}",
-                                        gd.getNamespace(),
-                                        gd.getLiteralSystemId());
-                                shadowCache.put(literalSystemId, grammar);
-                            }
-                        }
-                    }
-                } // for
-            }
-        }
-
-
-        private Grammar findGrammerFromCache(XMLGrammarDescription desc) {
-            if (!cache.isEmpty()) {
-                for (Grammar grammar : cache) {
-                    final XMLGrammarDescription gd =
-                            grammar.getGrammarDescription();
-                    if (gd.getNamespace().equals(desc.getNamespace())) {
-                        return grammar;
-                    }
-                }
-            }
-            return null;
+        public void setErrorHandler(ErrorHandler errorHandler) {
+            /* IGNORE */
         }
-    }  // class ShadowCacheGrammarPool
+    }
 
 } // class CMDIValidator
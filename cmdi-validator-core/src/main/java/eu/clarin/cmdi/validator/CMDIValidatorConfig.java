@@ -24,14 +24,37 @@ import java.util.List;
 
 
 public class CMDIValidatorConfig {
+    public enum GrammarCachePolicy {
+        LRU, TINY_LFU
+    }
     private final File root;
     private final CMDIValidationHandler handler;
     private FileFilter fileFilter = null;
     private long maxFileSize = 0;
+    private long fileTimeLimit = 0;
+    private int reportQueueSize = 0;
+    private int reportThreads = 1;
+    private int reportBatchSize = 32;
+    private long memoryBudget = 0;
+    private double memoryFactor = 10.0;
+    private int warmUpThreads = 0;
+    private int batchSize = 1;
+    private int enumeratorQueueSize = 0;
+    private int traversalThreads = 1;
+    private int largestFirstWindow = 0;
+    private int prefetchCount = 0;
+    private int prefetchThreads = 2;
+    private long prefetchBudget = 64 * 1024 * 1024;
+    private int grammarCacheSize = 64;
+    private long grammarCacheWeight = 0;
+    private GrammarCachePolicy grammarCachePolicy =
+            GrammarCachePolicy.TINY_LFU;
     private File schemaCacheDirectory = null;
     private CMDISchemaLoader schemaLoader = null;
     private File schematronSchemaFile = null;
     private boolean schematronDisabled = false;
+    private boolean schemaManifestDisabled = false;
+    private boolean errorCausesDisabled = false;
     private List<CMDIValidatorExtension> extensions = null;
     private int connectTimeout = 60000;
     private int socketTimeout = 60000;
@@ -65,6 +88,91 @@ public class CMDIValidatorConfig {
     }
 
 
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+
+    public double getMemoryFactor() {
+        return memoryFactor;
+    }
+
+
+    public int getReportQueueSize() {
+        return reportQueueSize;
+    }
+
+
+    public int getReportThreads() {
+        return reportThreads;
+    }
+
+
+    public int getReportBatchSize() {
+        return reportBatchSize;
+    }
+
+
+    public long getFileTimeLimit() {
+        return fileTimeLimit;
+    }
+
+
+    public int getGrammarCacheSize() {
+        return grammarCacheSize;
+    }
+
+
+    public long getGrammarCacheWeight() {
+        return grammarCacheWeight;
+    }
+
+
+    public GrammarCachePolicy getGrammarCachePolicy() {
+        return grammarCachePolicy;
+    }
+
+
+    public int getWarmUpThreads() {
+        return warmUpThreads;
+    }
+
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+
+    public int getEnumeratorQueueSize() {
+        return enumeratorQueueSize;
+    }
+
+
+    public int getTraversalThreads() {
+        return traversalThreads;
+    }
+
+
+    public int getLargestFirstWindow() {
+        return largestFirstWindow;
+    }
+
+
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+
+    public int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
+
+    public long getPrefetchBudget() {
+        return prefetchBudget;
+    }
+
+
     public CMDIValidationHandler getHandler() {
         return handler;
     }
@@ -90,6 +198,16 @@ public class CMDIValidatorConfig {
     }
 
 
+    public boolean isSchemaManifestDisabled() {
+        return schemaManifestDisabled;
+    }
+
+
+    public boolean isErrorCausesDisabled() {
+        return errorCausesDisabled;
+    }
+
+
     public List<CMDIValidatorExtension> getExtensions() {
         if (extensions != null) {
             return Collections.unmodifiableList(extensions);
@@ -139,6 +257,181 @@ public class CMDIValidatorConfig {
         }
 
 
+        /*
+         * Limit the estimated memory of all files validated at the same
+         * time. If set, the maximum file size is ignored and only files,
+         * which exceed the whole budget, are skipped.
+         */
+        public Builder memoryBudget(final long memoryBudget) {
+            if ((memoryBudget != 0) && (memoryBudget < 1024)) {
+                throw new IllegalArgumentException("memoryBudget needs to be zero or at least 1024 bytes");
+            }
+            config.memoryBudget = memoryBudget;
+            return this;
+        }
+
+
+        /*
+         * The factor applied to the file size to estimate the memory needed
+         * for validating a file.
+         */
+        public Builder memoryFactor(final double memoryFactor) {
+            if (memoryFactor <= 0) {
+                throw new IllegalArgumentException("memoryFactor needs to be larger than zero");
+            }
+            config.memoryFactor = memoryFactor;
+            return this;
+        }
+
+
+        /*
+         * Deliver reports asynchronously through a queue of the given size.
+         * If zero, the handler is called directly by the validating threads.
+         */
+        public Builder reportQueueSize(final int reportQueueSize) {
+            if (reportQueueSize < 0) {
+                throw new IllegalArgumentException("reportQueueSize needs to be larger or equal to zero");
+            }
+            config.reportQueueSize = reportQueueSize;
+            return this;
+        }
+
+
+        public Builder reportThreads(final int reportThreads) {
+            if (reportThreads < 1) {
+                throw new IllegalArgumentException("reportThreads needs to be larger than zero");
+            }
+            config.reportThreads = reportThreads;
+            return this;
+        }
+
+
+        public Builder reportBatchSize(final int reportBatchSize) {
+            if (reportBatchSize < 1) {
+                throw new IllegalArgumentException("reportBatchSize needs to be larger than zero");
+            }
+            config.reportBatchSize = reportBatchSize;
+            return this;
+        }
+
+
+        public Builder fileTimeLimit(final long fileTimeLimit) {
+            if (fileTimeLimit < 0) {
+                throw new IllegalArgumentException("fileTimeLimit needs to be larger or equal to zero");
+            }
+            config.fileTimeLimit = fileTimeLimit;
+            return this;
+        }
+
+
+        public Builder grammarCacheSize(final int grammarCacheSize) {
+            if (grammarCacheSize < 1) {
+                throw new IllegalArgumentException("grammarCacheSize needs to be larger than zero");
+            }
+            config.grammarCacheSize = grammarCacheSize;
+            return this;
+        }
+
+
+        /*
+         * Limit the approximate memory used by cached grammars (in bytes).
+         * Zero means, the cache is only bounded by the number of grammars.
+         */
+        public Builder grammarCacheWeight(final long grammarCacheWeight) {
+            if (grammarCacheWeight < 0) {
+                throw new IllegalArgumentException("grammarCacheWeight needs to be larger or equal to zero");
+            }
+            config.grammarCacheWeight = grammarCacheWeight;
+            return this;
+        }
+
+
+        public Builder grammarCachePolicy(
+                final GrammarCachePolicy grammarCachePolicy) {
+            if (grammarCachePolicy == null) {
+                throw new NullPointerException("grammarCachePolicy == null");
+            }
+            config.grammarCachePolicy = grammarCachePolicy;
+            return this;
+        }
+
+
+        /*
+         * Load all schemas referenced by the files using the given number of
+         * threads, before validation starts. Zero disables the warm-up.
+         */
+        public Builder warmUpThreads(final int warmUpThreads) {
+            if (warmUpThreads < 0) {
+                throw new IllegalArgumentException("warmUpThreads needs to be larger or equal to zero");
+            }
+            config.warmUpThreads = warmUpThreads;
+            return this;
+        }
+
+
+        public Builder batchSize(final int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("batchSize needs to be larger than zero");
+            }
+            config.batchSize = batchSize;
+            return this;
+        }
+
+
+        public Builder enumeratorQueueSize(final int enumeratorQueueSize) {
+            if (enumeratorQueueSize < 0) {
+                throw new IllegalArgumentException("enumeratorQueueSize needs to be larger or equal to zero");
+            }
+            config.enumeratorQueueSize = enumeratorQueueSize;
+            return this;
+        }
+
+
+        public Builder traversalThreads(final int traversalThreads) {
+            if (traversalThreads < 1) {
+                throw new IllegalArgumentException("traversalThreads needs to be larger than zero");
+            }
+            config.traversalThreads = traversalThreads;
+            return this;
+        }
+
+
+        public Builder largestFirstWindow(final int largestFirstWindow) {
+            if (largestFirstWindow < 0) {
+                throw new IllegalArgumentException("largestFirstWindow needs to be larger or equal to zero");
+            }
+            config.largestFirstWindow = largestFirstWindow;
+            return this;
+        }
+
+
+        public Builder prefetchCount(final int prefetchCount) {
+            if (prefetchCount < 0) {
+                throw new IllegalArgumentException("prefetchCount needs to be larger or equal to zero");
+            }
+            config.prefetchCount = prefetchCount;
+            return this;
+        }
+
+
+        public Builder prefetchThreads(final int prefetchThreads) {
+            if (prefetchThreads < 1) {
+                throw new IllegalArgumentException("prefetchThreads needs to be larger than zero");
+            }
+            config.prefetchThreads = prefetchThreads;
+            return this;
+        }
+
+
+        public Builder prefetchBudget(final long prefetchBudget) {
+            if (prefetchBudget < 4096) {
+                throw new IllegalArgumentException("prefetchBudget needs to be at least 4096 bytes");
+            }
+            config.prefetchBudget = prefetchBudget;
+            return this;
+        }
+
+
         public Builder schemaCacheDirectory(final File schemaCacheDirectory) {
             if (schemaCacheDirectory == null) {
                 throw new NullPointerException("schemaCacheDirectory == null");
@@ -186,6 +479,35 @@ public class CMDIValidatorConfig {
         }
 
 
+        public Builder schemaManifestDisabled(boolean schemaManifestDisabled) {
+            config.schemaManifestDisabled = schemaManifestDisabled;
+            return this;
+        }
+
+
+        public Builder disableSchemaManifest() {
+            config.schemaManifestDisabled = true;
+            return this;
+        }
+
+
+        /*
+         * Only record line, column and message of schema validation errors
+         * and do not keep the exceptions around as message cause. This saves
+         * a lot of garbage on corpora with many invalid files.
+         */
+        public Builder errorCausesDisabled(boolean errorCausesDisabled) {
+            config.errorCausesDisabled = errorCausesDisabled;
+            return this;
+        }
+
+
+        public Builder disableErrorCauses() {
+            config.errorCausesDisabled = true;
+            return this;
+        }
+
+
         public Builder extension(final CMDIValidatorExtension extension) {
             if (extension == null) {
                 throw new NullPointerException("extension == null");
@@ -0,0 +1,151 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public final class CMDIValidatorJob {
+    public static final long NO_DEADLINE = -1;
+    private final CMDIValidator validator;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile long deadline = NO_DEADLINE;
+    private volatile long timeStarted = -1;
+    private volatile long timeFinished = -1;
+
+
+    CMDIValidatorJob(CMDIValidator validator) {
+        this.validator = validator;
+    }
+
+
+    public CMDIValidator getValidator() {
+        return validator;
+    }
+
+
+    public void await() throws InterruptedException {
+        finished.await();
+    }
+
+
+    public boolean await(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (unit == null) {
+            throw new NullPointerException("unit == null");
+        }
+        return finished.await(timeout, unit);
+    }
+
+
+    public boolean isDone() {
+        return finished.getCount() == 0;
+    }
+
+
+    /*
+     * Returns the result of the job or null, if the job is still running.
+     */
+    public CMDIValidator.Result getResult() {
+        return isDone() ? validator.getResult() : null;
+    }
+
+
+    public void cancel() {
+        validator.abort();
+    }
+
+
+    /*
+     * Set a wall-clock deadline (in milliseconds since the epoch). Files,
+     * that have not been started when the deadline has passed are
+     * skipped and the job finishes with result TIMEOUT. Files already being
+     * validated are finished.
+     */
+    public void setDeadline(long deadline) {
+        if ((deadline < 0) && (deadline != NO_DEADLINE)) {
+            throw new IllegalArgumentException("deadline < 0");
+        }
+        this.deadline = deadline;
+    }
+
+
+    public void setTimeLimit(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout < 0");
+        }
+        if (unit == null) {
+            throw new NullPointerException("unit == null");
+        }
+        setDeadline(System.currentTimeMillis() + unit.toMillis(timeout));
+    }
+
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+
+    public boolean isDeadlineExceeded() {
+        return validator.getResult() == CMDIValidator.Result.TIMEOUT;
+    }
+
+
+    public CMDIValidator.Statistics getStatistics() {
+        return validator.getStatistics();
+    }
+
+
+    public long getTimeStarted() {
+        return timeStarted;
+    }
+
+
+    /*
+     * Returns the time (in milliseconds), the job has been running so far
+     * or -1, if it has not been started yet.
+     */
+    public long getTimeElapsed() {
+        final long started = timeStarted;
+        if (started == -1) {
+            return -1;
+        }
+        final long stopped = timeFinished;
+        return ((stopped != -1) ? stopped : System.currentTimeMillis()) -
+                started;
+    }
+
+
+    boolean isExpired() {
+        final long d = deadline;
+        return (d != NO_DEADLINE) && (System.currentTimeMillis() >= d);
+    }
+
+
+    void started() {
+        timeStarted = System.currentTimeMillis();
+    }
+
+
+    void finished() {
+        if (finished.getCount() > 0) {
+            timeFinished = System.currentTimeMillis();
+            finished.countDown();
+        }
+    }
+
+} // class CMDIValidatorJob
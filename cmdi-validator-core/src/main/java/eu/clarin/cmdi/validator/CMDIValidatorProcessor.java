@@ -18,7 +18,7 @@ package eu.clarin.cmdi.validator;
 
 public interface CMDIValidatorProcessor {
 
-    public void process(final CMDIValidator validator)
+    public CMDIValidatorJob process(final CMDIValidator validator)
             throws CMDIValidatorException;
 
 } // interface CMDIValidatorProcessor
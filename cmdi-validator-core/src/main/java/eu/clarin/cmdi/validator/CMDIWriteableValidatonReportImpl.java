@@ -23,7 +23,9 @@ import java.util.List;
 
 final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationReport {
     private File file;
+    private long fileSize = -1;
     private boolean fileSkipped;
+    private MemoryBudget.Admission admission;
     private List<Message> messages;
     private Severity highestSeverity = Severity.INFO;
 
@@ -34,6 +36,32 @@ final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationR
     }
 
 
+    /*
+     * The size of the file, as it was obtained during enumeration. Only
+     * available here, because it is not part of the public report API.
+     */
+    long getFileSize() {
+        if ((fileSize == -1) && (file != null)) {
+            fileSize = file.length();
+        }
+        return fileSize;
+    }
+
+
+    /*
+     * The memory admitted for validating the file, if any. It is given back,
+     * when the report is delivered.
+     */
+    MemoryBudget.Admission getAdmission() {
+        return admission;
+    }
+
+
+    void setAdmission(MemoryBudget.Admission admission) {
+        this.admission = admission;
+    }
+
+
     @Override
     public boolean isFileSkipped() {
         return fileSkipped;
@@ -43,6 +71,14 @@ final class CMDIWriteableValidatonReportImpl implements CMDIWriteableValidationR
     @Override
     public void setFile(File file, boolean fileSkipped) {
         this.file = file;
+        this.fileSize = -1;
+        this.fileSkipped = fileSkipped;
+    }
+
+
+    void setFile(File file, long fileSize, boolean fileSkipped) {
+        this.file = file;
+        this.fileSize = fileSize;
         this.fileSkipped = fileSkipped;
     }
 
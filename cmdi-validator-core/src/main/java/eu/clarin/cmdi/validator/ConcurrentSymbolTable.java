@@ -0,0 +1,281 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.xerces.util.SymbolTable;
+
+
+/*
+ * A symbol table, that can be shared by the parsers of all threads. Lookups
+ * do not lock, because entries are immutable and only ever prepended to
+ * their bucket. Only adding a new symbol takes the lock, and this becomes
+ * rare as soon as the names of the profiles have been seen once. The
+ * bookkeeping of the Xerces base class is not used at all.
+ *
+ * Like the Xerces base class, the table protects itself against crafted
+ * documents with lots of colliding names (CVE-2012-0881): if a bucket grows
+ * beyond MAX_HASH_COLLISIONS entries, all symbols are rehashed with a hash
+ * function, that uses randomly chosen multipliers.
+ */
+final class ConcurrentSymbolTable extends SymbolTable {
+    private static final float LOAD_FACTOR = 0.75f;
+    private volatile Table table;
+    private int count;
+    private int threshold;
+
+
+    ConcurrentSymbolTable(int initialCapacity) {
+        super(1);
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("initialCapacity < 1");
+        }
+        int capacity = 1;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        this.table     =
+                new Table(new AtomicReferenceArray<Symbol>(capacity), null);
+        this.threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+
+    @Override
+    public String addSymbol(String symbol) {
+        final Table t = table;
+        final String s = find(t, hash(t.multipliers, symbol), symbol);
+        if (s != null) {
+            return s;
+        }
+        return add(symbol);
+    }
+
+
+    @Override
+    public String addSymbol(char[] buffer, int offset, int length) {
+        final Table t = table;
+        final String s = find(t, hash(t.multipliers, buffer, offset, length),
+                buffer, offset, length);
+        if (s != null) {
+            return s;
+        }
+        return add(new String(buffer, offset, length));
+    }
+
+
+    @Override
+    public int hash(String symbol) {
+        return hash(table.multipliers, symbol);
+    }
+
+
+    @Override
+    public int hash(char[] buffer, int offset, int length) {
+        return hash(table.multipliers, buffer, offset, length);
+    }
+
+
+    @Override
+    public boolean containsSymbol(String symbol) {
+        final Table t = table;
+        return find(t, hash(t.multipliers, symbol), symbol) != null;
+    }
+
+
+    @Override
+    public boolean containsSymbol(char[] buffer, int offset, int length) {
+        final Table t = table;
+        return find(t, hash(t.multipliers, buffer, offset, length),
+                buffer, offset, length) != null;
+    }
+
+
+    @Override
+    protected void rehash() {
+        /* nothing to do, the table grows by itself */
+    }
+
+
+    private String add(String symbol) {
+        synchronized (this) {
+            /* someone else may have added it in the meantime */
+            Table t = table;
+            int hash = hash(t.multipliers, symbol);
+            int collisions = 0;
+            Symbol e = t.buckets.get(hash & (t.buckets.length() - 1));
+            while (e != null) {
+                if ((e.hash == hash) && e.symbol.equals(symbol)) {
+                    return e.symbol;
+                }
+                collisions++;
+                e = e.next;
+            }
+            if (count >= threshold) {
+                t = rebuild(t, t.buckets.length() << 1, t.multipliers);
+            } else if (collisions >= MAX_HASH_COLLISIONS) {
+                t = rebuild(t, t.buckets.length(), newMultipliers());
+                hash = hash(t.multipliers, symbol);
+            }
+            final int idx = hash & (t.buckets.length() - 1);
+            final Symbol entry = new Symbol(hash, symbol.intern(),
+                    t.buckets.get(idx));
+            t.buckets.set(idx, entry);
+            count++;
+            return entry.symbol;
+        } // synchronized (this)
+    }
+
+
+    private Table rebuild(Table t, int capacity, int[] multipliers) {
+        /*
+         * build a new table and publish it, when it is complete. Readers,
+         * that still see the old table, will at worst miss a symbol and
+         * take the lock, where the new table is consulted.
+         */
+        final AtomicReferenceArray<Symbol> buckets =
+                new AtomicReferenceArray<Symbol>(capacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < t.buckets.length(); i++) {
+            for (Symbol e = t.buckets.get(i); e != null; e = e.next) {
+                final int hash = (multipliers == t.multipliers)
+                        ? e.hash
+                        : hash(multipliers, e.symbol);
+                final int idx = hash & mask;
+                buckets.set(idx, new Symbol(hash, e.symbol, buckets.get(idx)));
+            }
+        }
+        final Table result = new Table(buckets, multipliers);
+        table     = result;
+        threshold = (int) (capacity * LOAD_FACTOR);
+        return result;
+    }
+
+
+    private static int[] newMultipliers() {
+        final SecureRandom random = new SecureRandom();
+        final int[] multipliers = new int[MULTIPLIERS_SIZE];
+        for (int i = 0; i < multipliers.length; i++) {
+            /* odd, so no information is shifted out */
+            multipliers[i] = random.nextInt() | 1;
+        }
+        return multipliers;
+    }
+
+
+    private static int hash(int[] multipliers, String symbol) {
+        if (multipliers == null) {
+            return symbol.hashCode() & 0x7FFFFFFF;
+        }
+        int code = 0;
+        for (int i = 0; i < symbol.length(); i++) {
+            code = code * multipliers[i & MULTIPLIERS_MASK] + symbol.charAt(i);
+        }
+        return code & 0x7FFFFFFF;
+    }
+
+
+    private static int hash(int[] multipliers, char[] buffer, int offset,
+            int length) {
+        int code = 0;
+        if (multipliers == null) {
+            /* same as String#hashCode() */
+            for (int i = 0; i < length; i++) {
+                code = code * 31 + buffer[offset + i];
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                code = code * multipliers[i & MULTIPLIERS_MASK] +
+                        buffer[offset + i];
+            }
+        }
+        return code & 0x7FFFFFFF;
+    }
+
+
+    private static String find(Table t, int hash, String symbol) {
+        Symbol e = t.buckets.get(hash & (t.buckets.length() - 1));
+        while (e != null) {
+            if ((e.hash == hash) && e.symbol.equals(symbol)) {
+                return e.symbol;
+            }
+            e = e.next;
+        }
+        return null;
+    }
+
+
+    private static String find(Table t, int hash, char[] buffer, int offset,
+            int length) {
+        Symbol e = t.buckets.get(hash & (t.buckets.length() - 1));
+        while (e != null) {
+            if ((e.hash == hash) && matches(e.symbol, buffer,
+                    offset, length)) {
+                return e.symbol;
+            }
+            e = e.next;
+        }
+        return null;
+    }
+
+
+    private static boolean matches(String symbol, char[] buffer,
+            int offset, int length) {
+        if (symbol.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (symbol.charAt(i) != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /*
+     * The buckets and the hash function used to fill them, which are
+     * always replaced together.
+     */
+    private static final class Table {
+        private final AtomicReferenceArray<Symbol> buckets;
+        private final int[] multipliers;
+
+
+        private Table(AtomicReferenceArray<Symbol> buckets,
+                int[] multipliers) {
+            this.buckets     = buckets;
+            this.multipliers = multipliers;
+        }
+    } // class Table
+
+
+    private static final class Symbol {
+        private final int hash;
+        private final String symbol;
+        private final Symbol next;
+
+
+        private Symbol(int hash, String symbol, Symbol next) {
+            this.hash   = hash;
+            this.symbol = symbol;
+            this.next   = next;
+        }
+    } // class Symbol
+
+} // class ConcurrentSymbolTable
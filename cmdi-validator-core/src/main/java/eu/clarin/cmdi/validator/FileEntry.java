@@ -0,0 +1,263 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.java.truevfs.access.TArchiveDetector;
+import net.java.truevfs.access.TConfig;
+import net.java.truevfs.access.TFile;
+import net.java.truevfs.access.TFileInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * A file or directory to be processed. Entries on a plain file system are
+ * accessed through java.nio.file directly and carry the attributes, that
+ * were obtained when listing their parent directory. Only archives and
+ * entries within archives are accessed through TrueVFS.
+ */
+final class FileEntry {
+    private static final Logger logger =
+            LoggerFactory.getLogger(FileEntry.class);
+    private static final FileEntry[] EMPTY = new FileEntry[0];
+    private final File file;
+    private final Path path;
+    private final boolean directory;
+    private final long size;
+    private volatile FilePrefetcher.Prefetch prefetch;
+
+
+    FileEntry(File file, Path path, boolean directory, long size) {
+        this.file      = file;
+        this.path      = path;
+        this.directory = directory;
+        this.size      = size;
+    }
+
+
+    File getFile() {
+        return file;
+    }
+
+
+    boolean isDirectory() {
+        return directory;
+    }
+
+
+    long getSize() {
+        return size;
+    }
+
+
+    InputStream openStream() throws IOException {
+        final FilePrefetcher.Prefetch p = prefetch;
+        if (p != null) {
+            final InputStream stream = p.await();
+            if (stream != null) {
+                return stream;
+            }
+        }
+        return openSourceStream();
+    }
+
+
+    InputStream openSourceStream() throws IOException {
+        if (path != null) {
+            return Files.newInputStream(path);
+        } else {
+            return new TFileInputStream(file);
+        }
+    }
+
+
+    /*
+     * Read the whole file into memory and return a stream for it. The
+     * prefetched content is handed out as is, so the entry must not be
+     * released, before the stream has been consumed.
+     */
+    InputStream openInMemory() throws IOException {
+        final FilePrefetcher.Prefetch p = prefetch;
+        if (p != null) {
+            final InputStream stream = p.await();
+            if (stream != null) {
+                return stream;
+            }
+        }
+        if (path != null) {
+            return new ByteArrayInputStream(Files.readAllBytes(path));
+        }
+        final InputStream stream = openSourceStream();
+        try {
+            final ByteArrayOutputStream out =
+                    new ByteArrayOutputStream((int) Math.max(size, 512));
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return new ByteArrayInputStream(out.toByteArray());
+        } finally {
+            stream.close();
+        }
+    }
+
+
+    void setPrefetch(FilePrefetcher.Prefetch prefetch) {
+        this.prefetch = prefetch;
+    }
+
+
+    /*
+     * Release the prefetched content, if any. The buffer is only recycled,
+     * if nobody can still be reading from it.
+     */
+    void release(boolean recycle) {
+        final FilePrefetcher.Prefetch p = prefetch;
+        if (p != null) {
+            prefetch = null;
+            p.release(recycle);
+        }
+    }
+
+
+    FileEntry[] list(FileFilter filter) {
+        if (!directory) {
+            return EMPTY;
+        }
+        if (path != null) {
+            return listPath(filter);
+        } else {
+            return listArchive(filter);
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+
+    static FileEntry forRoot(File root) {
+        final TFile file = new TFile(root);
+        if (!file.isArchive() && (file.getEnclArchive() == null)) {
+            try {
+                final Path path = root.toPath();
+                final BasicFileAttributes attrs =
+                        Files.readAttributes(path, BasicFileAttributes.class);
+                logger.debug("using plain file system access for '{}'", root);
+                return new FileEntry(root, path, attrs.isDirectory(),
+                        attrs.size());
+            } catch (IOException e) {
+                logger.debug("cannot read attributes of '{}', falling back " +
+                        "to TrueVFS", root);
+            }
+        }
+        return forArchive(file);
+    }
+
+
+    private static FileEntry forArchive(TFile file) {
+        final boolean directory = file.isDirectory();
+        return new FileEntry(file, null, directory,
+                directory ? 0 : file.length());
+    }
+
+
+    private FileEntry[] listPath(FileFilter filter) {
+        final List<FileEntry> result = new ArrayList<FileEntry>();
+        final TArchiveDetector detector =
+                TConfig.current().getArchiveDetector();
+        try {
+            final DirectoryStream<Path> stream =
+                    Files.newDirectoryStream(path);
+            try {
+                for (Path child : stream) {
+                    final BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(child,
+                                BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        logger.debug("cannot read attributes of '{}'", child);
+                        continue;
+                    }
+                    final File childFile = child.toFile();
+                    if (attrs.isDirectory()) {
+                        result.add(new FileEntry(childFile, child, true, 0));
+                    } else if (detector.scheme(childFile.getName()) != null) {
+                        /*
+                         * archives are handled by TrueVFS. If it cannot open
+                         * the archive, it is just another file.
+                         */
+                        final FileEntry entry =
+                                forArchive(new TFile(childFile));
+                        if (!entry.isDirectory() &&
+                                (filter != null) && !filter.accept(childFile)) {
+                            continue;
+                        }
+                        result.add(entry);
+                    } else {
+                        if ((filter != null) && !filter.accept(childFile)) {
+                            continue;
+                        }
+                        result.add(new FileEntry(childFile, child, false,
+                                attrs.size()));
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            logger.debug("cannot list directory '{}'", path, e);
+        }
+        return result.toArray(new FileEntry[result.size()]);
+    }
+
+
+    private FileEntry[] listArchive(FileFilter filter) {
+        final TFile[] files = ((TFile) file).listFiles();
+        if ((files == null) || (files.length == 0)) {
+            return EMPTY;
+        }
+        final List<FileEntry> result = new ArrayList<FileEntry>(files.length);
+        for (TFile child : files) {
+            final FileEntry entry = forArchive(child);
+            if (!entry.isDirectory() &&
+                    (filter != null) && !filter.accept(child)) {
+                continue;
+            }
+            result.add(entry);
+        }
+        return result.toArray(new FileEntry[result.size()]);
+    }
+
+} // class FileEntry
@@ -0,0 +1,759 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+abstract class FileEnumerator {
+    private static final Logger logger =
+            LoggerFactory.getLogger(FileEnumerator.class);
+    private static final int DEFAULT_QUEUE_SIZE = 1024;
+
+
+    static FileEnumerator newInstance(FileEntry root, FileFilter filter,
+            int queueSize, int traversalThreads, int largestFirstWindow,
+            FilePrefetcher prefetcher, int prefetchCount) {
+        FileEnumerator enumerator;
+        if ((queueSize > 0) || (traversalThreads > 1)) {
+            enumerator = new QueuedFileEnumerator(root, filter,
+                    (queueSize > 0) ? queueSize : DEFAULT_QUEUE_SIZE,
+                    traversalThreads);
+        } else {
+            enumerator = new SequentialFileEnumerator(root, filter);
+        }
+        if (largestFirstWindow > 1) {
+            enumerator = new LargestFirstFileEnumerator(enumerator,
+                    largestFirstWindow);
+        }
+        if ((prefetcher != null) && (prefetchCount > 0)) {
+            enumerator = new PrefetchingFileEnumerator(enumerator,
+                    prefetcher, prefetchCount);
+        }
+        return enumerator;
+    }
+
+
+    abstract boolean isEmpty();
+
+
+    abstract int nextFiles(FileEntry[] batch);
+
+
+    abstract void flush();
+
+
+    long getFilesEnumeratedCount() {
+        return -1;
+    }
+
+
+    int getQueueDepth() {
+        return -1;
+    }
+
+
+    int getQueueCapacity() {
+        return -1;
+    }
+
+
+    long getStallCount() {
+        return -1;
+    }
+
+
+    long getStallTime() {
+        return -1;
+    }
+
+
+    long getPrefetchedCount() {
+        return -1;
+    }
+
+
+    long getPrefetchBypassedCount() {
+        return -1;
+    }
+
+
+    private static final class SequentialFileEnumerator extends
+            FileEnumerator {
+        private static final class FileList {
+            private final FileEntry[] fileList;
+            private int idx = 0;
+
+
+            private FileList(FileEntry[] fileList) {
+                this.fileList = fileList;
+            }
+
+
+            private FileEntry nextFile() {
+                return (idx < fileList.length) ? fileList[idx++] : null;
+            }
+
+            private int size() {
+                return (fileList.length - idx);
+            }
+        }
+        private final FileFilter filter;
+        private final LinkedList<FileList> stack =
+                new LinkedList<FileList>();
+
+
+        private SequentialFileEnumerator(FileEntry root, FileFilter filter) {
+            if (root == null) {
+                throw new NullPointerException("root == null");
+            }
+            this.filter = filter;
+            if (root.isDirectory()) {
+                pushDirectory(root);
+            } else {
+                if ((filter == null) || filter.accept(root.getFile())) {
+                    stack.add(new FileList(new FileEntry[] { root }));
+                }
+            }
+        }
+
+
+        @Override
+        synchronized boolean isEmpty() {
+            return stack.isEmpty();
+        }
+
+
+        @Override
+        synchronized int nextFiles(FileEntry[] batch) {
+            int count = 0;
+            while (count < batch.length) {
+                final FileEntry file = nextFile();
+                if (file == null) {
+                    break;
+                }
+                batch[count++] = file;
+            }
+            return count;
+        }
+
+
+        @Override
+        synchronized void flush() {
+            stack.clear();
+        }
+
+
+        private FileEntry nextFile() {
+            for (;;) {
+                if (stack.isEmpty()) {
+                    break;
+                }
+                final FileList list = stack.peek();
+                final FileEntry file = list.nextFile();
+                if ((list.size() == 0) || (file == null)) {
+                    stack.pop();
+                    if (file == null) {
+                        continue;
+                    }
+                }
+                if (file.isDirectory()) {
+                    pushDirectory(file);
+                    continue;
+                }
+                return file;
+            }
+            return null;
+        }
+
+
+        private void pushDirectory(FileEntry directory) {
+            final FileEntry[] files = directory.list(filter);
+            if ((files != null) && (files.length > 0)) {
+                stack.push(new FileList(files));
+            }
+        }
+
+    } // class SequentialFileEnumerator
+
+
+    /*
+     * Walks the file system in a dedicated producer thread ahead of the
+     * validator threads and hands out files through a bounded queue. This
+     * way, slow directory listings overlap with validation and never block
+     * any of the validator threads as long as the queue is not drained.
+     * If more than one traversal thread is requested, directories are listed
+     * concurrently by a pool of threads, which all feed the same queue.
+     */
+    private static final class QueuedFileEnumerator extends FileEnumerator {
+        private static final FileEntry END_OF_FILES =
+                new FileEntry(new File(""), null, false, 0);
+        private final FileEntry root;
+        private final FileFilter filter;
+        private final BlockingQueue<FileEntry> queue;
+        private final int queueSize;
+        private final int traversalThreads;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final AtomicInteger pendingDirectories = new AtomicInteger();
+        private final AtomicLong filesEnumerated = new AtomicLong();
+        private final AtomicLong stallCount = new AtomicLong();
+        private final AtomicLong stallTime = new AtomicLong();
+        private volatile boolean exhausted = false;
+        private volatile Thread producer;
+        private volatile ExecutorService listers;
+
+
+        private QueuedFileEnumerator(FileEntry root, FileFilter filter,
+                int queueSize, int traversalThreads) {
+            if (root == null) {
+                throw new NullPointerException("root == null");
+            }
+            this.root             = root;
+            this.filter           = filter;
+            this.queue            = new ArrayBlockingQueue<FileEntry>(queueSize);
+            this.queueSize        = queueSize;
+            this.traversalThreads = traversalThreads;
+        }
+
+
+        @Override
+        boolean isEmpty() {
+            return exhausted;
+        }
+
+
+        @Override
+        int nextFiles(FileEntry[] batch) {
+            if (exhausted) {
+                return 0;
+            }
+            if (started.compareAndSet(false, true)) {
+                if ((traversalThreads > 1) && root.isDirectory()) {
+                    startListers();
+                } else {
+                    startProducer();
+                }
+            }
+
+            int count = 0;
+            try {
+                FileEntry file = queue.poll();
+                if (file == null) {
+                    /* producer is lagging behind */
+                    final long waitStart = System.nanoTime();
+                    file = queue.take();
+                    stallCount.incrementAndGet();
+                    stallTime.addAndGet(System.nanoTime() - waitStart);
+                }
+                while (file != null) {
+                    if (file == END_OF_FILES) {
+                        /* make sure, other threads see the marker, too */
+                        exhausted = true;
+                        queue.offer(END_OF_FILES);
+                        break;
+                    }
+                    batch[count++] = file;
+                    if (count == batch.length) {
+                        break;
+                    }
+                    file = queue.poll();
+                } // while
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return count;
+        }
+
+
+        @Override
+        void flush() {
+            exhausted = true;
+            final Thread thread = producer;
+            if (thread != null) {
+                thread.interrupt();
+            }
+            final ExecutorService executor = listers;
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            queue.clear();
+            queue.offer(END_OF_FILES);
+        }
+
+
+        @Override
+        long getFilesEnumeratedCount() {
+            return filesEnumerated.get();
+        }
+
+
+        @Override
+        int getQueueDepth() {
+            return queue.size();
+        }
+
+
+        @Override
+        int getQueueCapacity() {
+            return queueSize;
+        }
+
+
+        @Override
+        long getStallCount() {
+            return stallCount.get();
+        }
+
+
+        @Override
+        long getStallTime() {
+            return stallTime.get() / 1000000L;
+        }
+
+
+        private void startProducer() {
+            final SequentialFileEnumerator enumerator =
+                    new SequentialFileEnumerator(root, filter);
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final FileEntry[] batch = new FileEntry[64];
+                    try {
+                        for (;;) {
+                            if (exhausted) {
+                                break;
+                            }
+                            final int count = enumerator.nextFiles(batch);
+                            if (count == 0) {
+                                break;
+                            }
+                            for (int i = 0; i < count; i++) {
+                                queue.put(batch[i]);
+                                batch[i] = null;
+                                filesEnumerated.incrementAndGet();
+                            }
+                        } // for
+                        logger.debug("enumerated {} files",
+                                filesEnumerated.get());
+                    } catch (InterruptedException e) {
+                        logger.debug("file enumeration was interrupted");
+                    } catch (Throwable e) {
+                        logger.error("unexpected error enumerating files", e);
+                    } finally {
+                        try {
+                            queue.put(END_OF_FILES);
+                        } catch (InterruptedException e) {
+                            queue.offer(END_OF_FILES);
+                        }
+                    }
+                }
+            }, "file-enumerator");
+            thread.setDaemon(true);
+            producer = thread;
+            thread.start();
+        }
+
+
+        private void startListers() {
+            final ThreadFactory threadFactory = new ThreadFactory() {
+                private final AtomicInteger id = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable target) {
+                    final Thread thread = new Thread(target,
+                            String.format("file-enumerator-%02x",
+                                    id.getAndIncrement()));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            listers = Executors.newFixedThreadPool(traversalThreads,
+                    threadFactory);
+            submitDirectory(root);
+        }
+
+
+        private void submitDirectory(final FileEntry directory) {
+            pendingDirectories.incrementAndGet();
+            try {
+                listers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listDirectory(directory);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                /* enumeration has been flushed */
+                pendingDirectories.decrementAndGet();
+            }
+        }
+
+
+        private void listDirectory(FileEntry directory) {
+            try {
+                if (exhausted) {
+                    return;
+                }
+                for (FileEntry entry : directory.list(filter)) {
+                    if (entry.isDirectory()) {
+                        submitDirectory(entry);
+                        continue;
+                    }
+                    queue.put(entry);
+                    filesEnumerated.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                logger.debug("file enumeration was interrupted");
+            } catch (Throwable e) {
+                logger.error("unexpected error enumerating files", e);
+            } finally {
+                if (pendingDirectories.decrementAndGet() == 0) {
+                    logger.debug("enumerated {} files",
+                            filesEnumerated.get());
+                    listers.shutdown();
+                    try {
+                        queue.put(END_OF_FILES);
+                    } catch (InterruptedException e) {
+                        queue.offer(END_OF_FILES);
+                    }
+                }
+            }
+        }
+
+    } // class QueuedFileEnumerator
+
+
+    /*
+     * Reorders the files of another enumerator to hand out large files
+     * first (longest processing time first), so a large file found late
+     * does not keep a single thread busy after all others became idle.
+     * Files are only reordered within a bounded look-ahead window, to keep
+     * memory usage bounded for huge corpora. Files are handed out one at a
+     * time, because claiming a batch would pile up the largest files on a
+     * single thread. Hence, this does not go together with a batch size
+     * larger than one, and it is pointless for processors, that do not
+     * validate files in the order they are claimed (fork/join, affinity).
+     * The window is topped up outside of the monitor by one thread at a
+     * time and by one chunk per call, so a slow delegate does not block
+     * handing out files, that are already in the window. Threads only wait
+     * for the delegate, if the window is empty.
+     */
+    private static final class LargestFirstFileEnumerator extends
+            FileEnumerator {
+        private static final Comparator<FileEntry> LARGEST_FIRST =
+                new Comparator<FileEntry>() {
+                    @Override
+                    public int compare(FileEntry e1, FileEntry e2) {
+                        return Long.compare(e2.getSize(), e1.getSize());
+                    }
+                };
+        private final FileEnumerator delegate;
+        private final int windowSize;
+        private final PriorityQueue<FileEntry> window;
+        private final FileEntry[] buffer;
+        private final ReentrantLock fillLock = new ReentrantLock();
+        private boolean drained = false;
+
+
+        private LargestFirstFileEnumerator(FileEnumerator delegate,
+                int windowSize) {
+            this.delegate   = delegate;
+            this.windowSize = windowSize;
+            this.window     =
+                    new PriorityQueue<FileEntry>(windowSize, LARGEST_FIRST);
+            this.buffer     = new FileEntry[Math.min(windowSize, 64)];
+        }
+
+
+        @Override
+        synchronized boolean isEmpty() {
+            return window.isEmpty() && (drained || delegate.isEmpty());
+        }
+
+
+        @Override
+        int nextFiles(FileEntry[] batch) {
+            for (;;) {
+                /* top up the look-ahead window, unless someone else does */
+                if (fillLock.tryLock()) {
+                    try {
+                        fill(false);
+                    } finally {
+                        fillLock.unlock();
+                    }
+                }
+                synchronized (this) {
+                    final FileEntry file = window.poll();
+                    if (file != null) {
+                        batch[0] = file;
+                        return 1;
+                    }
+                    if (drained) {
+                        return 0;
+                    }
+                } // synchronized (this)
+
+                /* window is empty, so wait for the files being fetched */
+                fillLock.lock();
+                try {
+                    fill(true);
+                } finally {
+                    fillLock.unlock();
+                }
+            } // for
+        }
+
+
+        @Override
+        synchronized void flush() {
+            drained = true;
+            window.clear();
+            delegate.flush();
+        }
+
+
+        @Override
+        long getFilesEnumeratedCount() {
+            return delegate.getFilesEnumeratedCount();
+        }
+
+
+        @Override
+        int getQueueDepth() {
+            return delegate.getQueueDepth();
+        }
+
+
+        @Override
+        int getQueueCapacity() {
+            return delegate.getQueueCapacity();
+        }
+
+
+        @Override
+        long getStallCount() {
+            return delegate.getStallCount();
+        }
+
+
+        @Override
+        long getStallTime() {
+            return delegate.getStallTime();
+        }
+
+
+        /*
+         * Fetch the next chunk of files from the delegate. Must be called
+         * with the fill lock held. A thread, that waited for the lock,
+         * only fetches, if nobody else has filled the window meanwhile.
+         */
+        private void fill(boolean onlyIfEmpty) {
+            synchronized (this) {
+                if (drained || (window.size() >= windowSize) ||
+                        (onlyIfEmpty && !window.isEmpty())) {
+                    return;
+                }
+            } // synchronized (this)
+            final int count = delegate.nextFiles(buffer);
+            synchronized (this) {
+                if (count == 0) {
+                    drained = true;
+                }
+                for (int i = 0; i < count; i++) {
+                    /* files are dropped, if flushed in the meantime */
+                    if (!drained) {
+                        window.add(buffer[i]);
+                    }
+                    buffer[i] = null;
+                }
+            } // synchronized (this)
+        }
+
+    } // class LargestFirstFileEnumerator
+
+
+    /*
+     * Starts prefetching the contents of the next few files, before they
+     * are handed out. This way, reading a file overlaps with validating the
+     * previous ones. Like the largest-first window, the read-ahead window is
+     * topped up outside of the monitor by one thread at a time.
+     */
+    private static final class PrefetchingFileEnumerator extends
+            FileEnumerator {
+        private final FileEnumerator delegate;
+        private final FilePrefetcher prefetcher;
+        private final int prefetchCount;
+        private final ArrayDeque<FileEntry> ahead;
+        private final FileEntry[] buffer;
+        private final ReentrantLock fillLock = new ReentrantLock();
+        private boolean drained = false;
+
+
+        private PrefetchingFileEnumerator(FileEnumerator delegate,
+                FilePrefetcher prefetcher, int prefetchCount) {
+            this.delegate      = delegate;
+            this.prefetcher    = prefetcher;
+            this.prefetchCount = prefetchCount;
+            this.ahead         = new ArrayDeque<FileEntry>(prefetchCount);
+            this.buffer        = new FileEntry[Math.min(prefetchCount, 64)];
+        }
+
+
+        @Override
+        synchronized boolean isEmpty() {
+            return ahead.isEmpty() && (drained || delegate.isEmpty());
+        }
+
+
+        @Override
+        int nextFiles(FileEntry[] batch) {
+            for (;;) {
+                /* keep the read-ahead window full, unless someone else does */
+                if (fillLock.tryLock()) {
+                    try {
+                        fill(prefetchCount + batch.length);
+                    } finally {
+                        fillLock.unlock();
+                    }
+                }
+                synchronized (this) {
+                    int count = 0;
+                    while ((count < batch.length) && !ahead.isEmpty()) {
+                        batch[count++] = ahead.poll();
+                    }
+                    if (drained && ahead.isEmpty()) {
+                        prefetcher.shutdown();
+                    }
+                    if ((count > 0) || drained) {
+                        return count;
+                    }
+                } // synchronized (this)
+
+                /* window is empty, so wait for the files being fetched */
+                fillLock.lock();
+                try {
+                    fill(prefetchCount + batch.length);
+                } finally {
+                    fillLock.unlock();
+                }
+            } // for
+        }
+
+
+        @Override
+        synchronized void flush() {
+            drained = true;
+            for (FileEntry file : ahead) {
+                file.release(true);
+            }
+            ahead.clear();
+            prefetcher.shutdown();
+            delegate.flush();
+        }
+
+
+        @Override
+        long getFilesEnumeratedCount() {
+            return delegate.getFilesEnumeratedCount();
+        }
+
+
+        @Override
+        int getQueueDepth() {
+            return delegate.getQueueDepth();
+        }
+
+
+        @Override
+        int getQueueCapacity() {
+            return delegate.getQueueCapacity();
+        }
+
+
+        @Override
+        long getStallCount() {
+            return delegate.getStallCount();
+        }
+
+
+        @Override
+        long getStallTime() {
+            return delegate.getStallTime();
+        }
+
+
+        @Override
+        long getPrefetchedCount() {
+            return prefetcher.getPrefetchedCount();
+        }
+
+
+        @Override
+        long getPrefetchBypassedCount() {
+            return prefetcher.getBypassedCount();
+        }
+
+
+        /* must be called with the fill lock held */
+        private void fill(int size) {
+            for (;;) {
+                synchronized (this) {
+                    if (drained || (ahead.size() >= size)) {
+                        return;
+                    }
+                } // synchronized (this)
+                final int count = delegate.nextFiles(buffer);
+                for (int i = 0; i < count; i++) {
+                    prefetcher.prefetch(buffer[i]);
+                }
+                synchronized (this) {
+                    if (count == 0) {
+                        drained = true;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        if (!drained) {
+                            ahead.add(buffer[i]);
+                        } else {
+                            /* flushed in the meantime */
+                            buffer[i].release(true);
+                        }
+                        buffer[i] = null;
+                    }
+                } // synchronized (this)
+            } // for
+        }
+
+    } // class PrefetchingFileEnumerator
+
+} // class FileEnumerator
@@ -0,0 +1,284 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Reads the contents of files into pooled buffers in the background, so
+ * validation can parse from memory instead of waiting for storage. The
+ * buffers, that are in use, are limited by a memory budget. If the budget is
+ * exhausted, a file is not prefetched, but read directly when validated.
+ */
+final class FilePrefetcher {
+    private static final Logger logger =
+            LoggerFactory.getLogger(FilePrefetcher.class);
+    private static final int MIN_BUFFER_SIZE = 4096;
+    private final long budget;
+    private final long maxFileSize;
+    private final Semaphore available;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<Integer, Queue<byte[]>> pool =
+            new ConcurrentHashMap<Integer, Queue<byte[]>>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong prefetchedCount = new AtomicLong();
+    private final AtomicLong bypassedCount = new AtomicLong();
+
+
+    FilePrefetcher(int threads, long budget, long maxFileSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1");
+        }
+        if (budget < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("budget < " + MIN_BUFFER_SIZE);
+        }
+        this.budget      = budget;
+        this.maxFileSize = maxFileSize;
+        /* account in kilobytes to stay within range of int */
+        this.available   =
+                new Semaphore((int) Math.min(budget / 1024, Integer.MAX_VALUE));
+        this.executor    = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+            private final AtomicInteger id = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable target) {
+                final Thread thread = new Thread(target,
+                        String.format("file-prefetcher-%02x",
+                                id.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    void prefetch(FileEntry file) {
+        final long size = file.getSize();
+        if (file.isDirectory() || (size <= 0) ||
+                ((maxFileSize > 0) && (size > maxFileSize)) ||
+                (size > budget)) {
+            /* no need or no way to prefetch, validation reads directly */
+            return;
+        }
+        final Prefetch prefetch = new Prefetch(file);
+        file.setPrefetch(prefetch);
+        try {
+            executor.execute(prefetch.task);
+        } catch (RejectedExecutionException e) {
+            /* prefetcher was shut down */
+            prefetch.task.cancel(false);
+        }
+    }
+
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+
+    long getPrefetchedCount() {
+        return prefetchedCount.get();
+    }
+
+
+    long getBypassedCount() {
+        return bypassedCount.get();
+    }
+
+
+    private byte[] allocate(int capacity) {
+        final Queue<byte[]> queue = pool.get(Integer.valueOf(capacity));
+        if (queue != null) {
+            final byte[] buffer = queue.poll();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-capacity);
+                return buffer;
+            }
+        }
+        return new byte[capacity];
+    }
+
+
+    private void recycle(byte[] buffer) {
+        /* keep at most a budget's worth of idle buffers around */
+        if (pooledBytes.addAndGet(buffer.length) > budget) {
+            pooledBytes.addAndGet(-buffer.length);
+            return;
+        }
+        final Integer key = Integer.valueOf(buffer.length);
+        Queue<byte[]> queue = pool.get(key);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<byte[]>();
+            final Queue<byte[]> q = pool.putIfAbsent(key, queue);
+            if (q != null) {
+                queue = q;
+            }
+        }
+        queue.offer(buffer);
+    }
+
+
+    private static int capacityFor(long size) {
+        /* round up to a power of two to make buffers reusable */
+        int capacity = MIN_BUFFER_SIZE;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+
+    final class Prefetch {
+        private final FileEntry file;
+        private final FutureTask<Void> task =
+                new FutureTask<Void>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            read();
+                        } catch (IOException e) {
+                            /* just fall back to reading directly */
+                            logger.debug("error prefetching file '{}'",
+                                    file, e);
+                            free(true);
+                        }
+                        return null;
+                    }
+                });
+        private byte[] buffer;
+        private int length;
+        private int permits;
+
+
+        private Prefetch(final FileEntry file) {
+            this.file = file;
+        }
+
+
+        /*
+         * Wait for the file to be prefetched. Returns a stream for the
+         * prefetched content or null, if the file needs to be read directly.
+         */
+        InputStream await() {
+            return waitForTask()
+                    ? new ByteArrayInputStream(buffer, 0, length)
+                    : null;
+        }
+
+
+        /*
+         * Return the budget and, unless somebody might still be reading it,
+         * the buffer.
+         */
+        void release(boolean recycle) {
+            waitForTask();
+            free(recycle);
+        }
+
+
+        private boolean waitForTask() {
+            if (task.cancel(false)) {
+                /* not started yet, no point in waiting */
+                return false;
+            }
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (CancellationException e) {
+                return false;
+            } catch (ExecutionException e) {
+                return false;
+            }
+            synchronized (this) {
+                return buffer != null;
+            } // synchronized (this)
+        }
+
+
+        private void read() throws IOException {
+            final int capacity = capacityFor(file.getSize());
+            final int needed = (capacity + 1023) / 1024;
+            if (!available.tryAcquire(needed)) {
+                bypassedCount.incrementAndGet();
+                return;
+            }
+            synchronized (this) {
+                permits = needed;
+                buffer  = allocate(capacity);
+            } // synchronized (this)
+            final InputStream stream = file.openSourceStream();
+            try {
+                int count = 0;
+                while (count < buffer.length) {
+                    final int n =
+                            stream.read(buffer, count, buffer.length - count);
+                    if (n == -1) {
+                        break;
+                    }
+                    count += n;
+                }
+                if ((count == buffer.length) && (stream.read() != -1)) {
+                    /* file has grown since enumeration */
+                    free(true);
+                    bypassedCount.incrementAndGet();
+                    return;
+                }
+                length = count;
+                prefetchedCount.incrementAndGet();
+            } finally {
+                stream.close();
+            }
+        }
+
+
+        private synchronized void free(boolean recycle) {
+            if (buffer != null) {
+                if (recycle) {
+                    recycle(buffer);
+                }
+                buffer = null;
+            }
+            if (permits > 0) {
+                available.release(permits);
+                permits = 0;
+            }
+        }
+    } // class Prefetch
+
+} // class FilePrefetcher
@@ -0,0 +1,267 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Validates files in a work-stealing pool, that lists the directories
+ * itself. Hence, the options of the file enumerator (batch size,
+ * background enumeration, concurrent listing, prefetching and largest
+ * first ordering) do not apply.
+ */
+public class ForkJoinCMDIValidatorProcessor implements
+        ManagedCMDIValidatorProcessor {
+    private static final Logger logger =
+            LoggerFactory.getLogger(ForkJoinCMDIValidatorProcessor.class);
+    private static final int SPLIT_THRESHOLD = 8;
+    private final int parallelism;
+    private final Set<CMDIValidator> validators =
+            Collections.newSetFromMap(
+                    new ConcurrentHashMap<CMDIValidator, Boolean>());
+    private ForkJoinPool pool;
+
+
+    public ForkJoinCMDIValidatorProcessor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    public ForkJoinCMDIValidatorProcessor(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism < 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+
+    @Override
+    public synchronized void start() {
+        if (pool != null) {
+            throw new IllegalStateException("engine already started");
+        }
+        final ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory =
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger id = new AtomicInteger();
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                final ForkJoinWorkerThread thread =
+                        ForkJoinPool.defaultForkJoinWorkerThreadFactory
+                            .newThread(pool);
+                thread.setName(String.format("worker-%02x",
+                        id.getAndIncrement()));
+                return thread;
+            }
+        };
+        final Thread.UncaughtExceptionHandler exceptionHandler =
+                new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                logger.error("unexpected exception in worker thread", e);
+            }
+        };
+        pool = new ForkJoinPool(parallelism, threadFactory,
+                exceptionHandler, false);
+    }
+
+
+    @Override
+    public synchronized void shutdown() {
+        logger.debug("shutdown validation processor");
+        if (pool != null) {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(5000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                /* IGNORE */
+            }
+        }
+
+        /* unfinished jobs would never be finished otherwise */
+        for (CMDIValidator validator : validators) {
+            try {
+                validator.shutdownJob();
+            } catch (CMDIValidatorException e) {
+                logger.error("error finishing validator: {}",
+                        e.getMessage(), e);
+            }
+        }
+        validators.clear();
+    }
+
+
+    @Override
+    public CMDIValidatorJob process(final CMDIValidator validator)
+            throws CMDIValidatorException {
+        if (validator == null) {
+            throw new NullPointerException("validator == null");
+        }
+        final ForkJoinPool pool;
+        synchronized (this) {
+            if (this.pool == null) {
+                throw new IllegalStateException("engine not started");
+            }
+            pool = this.pool;
+        } // synchronized (this)
+        if (!validators.add(validator)) {
+            throw new CMDIValidatorException("already processing this validator");
+        }
+        pool.execute(new JobTask(validator));
+        return validator.getJob();
+    }
+
+
+    @SuppressWarnings("serial")
+    private final class JobTask extends RecursiveAction {
+        private final CMDIValidator validator;
+
+
+        private JobTask(CMDIValidator validator) {
+            this.validator = validator;
+        }
+
+
+        @Override
+        protected void compute() {
+            try {
+                if (validator.startJob()) {
+                    final FileEntry root = validator.getRoot();
+                    final FileFilter filter = validator.getFileFilter();
+                    if (root.isDirectory()) {
+                        new DirectoryTask(validator, root).invoke();
+                    } else if ((filter == null) ||
+                            filter.accept(root.getFile())) {
+                        new FileRangeTask(validator,
+                                new FileEntry[] { root }, 0, 1).invoke();
+                    }
+                }
+            } catch (CMDIValidatorException e) {
+                logger.error("error processing validator: {}",
+                        e.getMessage(), e);
+            } finally {
+                validators.remove(validator);
+                try {
+                    validator.finishJob();
+                } catch (CMDIValidatorException e) {
+                    logger.error("error finishing validator: {}",
+                            e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+
+    @SuppressWarnings("serial")
+    private static final class DirectoryTask extends RecursiveAction {
+        private final CMDIValidator validator;
+        private final FileEntry directory;
+
+
+        private DirectoryTask(CMDIValidator validator, FileEntry directory) {
+            this.validator = validator;
+            this.directory = directory;
+        }
+
+
+        @Override
+        protected void compute() {
+            if (!validator.isRunning()) {
+                return;
+            }
+            final FileEntry[] entries =
+                    directory.list(validator.getFileFilter());
+            if (entries.length == 0) {
+                return;
+            }
+
+            /*
+             * fork a task for every sub-directory and one for the files of
+             * this directory, which will be split further. Idle workers
+             * will steal these tasks ...
+             */
+            final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            final FileEntry[] files = new FileEntry[entries.length];
+            int count = 0;
+            for (FileEntry entry : entries) {
+                if (entry.isDirectory()) {
+                    tasks.add(new DirectoryTask(validator, entry));
+                } else {
+                    files[count++] = entry;
+                }
+            }
+            if (count > 0) {
+                tasks.add(new FileRangeTask(validator, files, 0, count));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+
+    @SuppressWarnings("serial")
+    private static final class FileRangeTask extends RecursiveAction {
+        private final CMDIValidator validator;
+        private final FileEntry[] files;
+        private final int lo;
+        private final int hi;
+
+
+        private FileRangeTask(CMDIValidator validator, FileEntry[] files,
+                int lo, int hi) {
+            this.validator = validator;
+            this.files     = files;
+            this.lo        = lo;
+            this.hi        = hi;
+        }
+
+
+        @Override
+        protected void compute() {
+            if ((hi - lo) > SPLIT_THRESHOLD) {
+                final int mid = (lo + hi) >>> 1;
+                invokeAll(new FileRangeTask(validator, files, lo, mid),
+                        new FileRangeTask(validator, files, mid, hi));
+            } else {
+                try {
+                    for (int i = lo; i < hi; i++) {
+                        if (!validator.isRunning()) {
+                            break;
+                        }
+                        validator.validateFile(files[i]);
+                    }
+                } catch (CMDIValidatorException e) {
+                    logger.error("error processing validator: {}",
+                            e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+} // class ForkJoinCMDIValidatorProcessor
@@ -0,0 +1,140 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Remembers across runs, which schema sets already passed full schema
+ * checking. Xerces grammars cannot be persisted, but with the manifest the
+ * expensive constraint checks can be skipped, as long as the content of the
+ * schema documents has not changed. Entries map the location of a schema to
+ * a content hash of all documents of the schema set.
+ */
+final class GrammarManifest {
+    private static final Logger logger =
+            LoggerFactory.getLogger(GrammarManifest.class);
+    private static final String FILE_NAME = "verified-schemas.properties";
+    private static final String COMMENT =
+            "schema sets that passed full schema checking";
+    private final File file;
+    private final Properties entries = new Properties();
+    private boolean dirty = false;
+
+
+    private GrammarManifest(File file) {
+        this.file = file;
+    }
+
+
+    String getHash(String key) {
+        return entries.getProperty(key);
+    }
+
+
+    void putHash(String key, String hash) {
+        synchronized (entries) {
+            if (!hash.equals(entries.setProperty(key, hash))) {
+                dirty = true;
+            }
+        } // synchronized (entries)
+    }
+
+
+    int size() {
+        return entries.size();
+    }
+
+
+    /*
+     * Write the manifest, if it has changed. The file is replaced atomically,
+     * so concurrent runs will never see a partially written manifest.
+     */
+    void save() {
+        synchronized (entries) {
+            if (!dirty) {
+                return;
+            }
+            File tmp = null;
+            try {
+                tmp = File.createTempFile("manifest", ".tmp",
+                        file.getParentFile());
+                final OutputStream out = new FileOutputStream(tmp);
+                try {
+                    entries.store(out, COMMENT);
+                } finally {
+                    out.close();
+                }
+                Files.move(tmp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                tmp = null;
+                dirty = false;
+                logger.debug("saved {} verified schema sets to '{}'",
+                        entries.size(), file);
+            } catch (IOException e) {
+                logger.warn("error saving schema manifest '{}': {}",
+                        file, e.getMessage());
+            } finally {
+                if (tmp != null) {
+                    tmp.delete();
+                }
+            }
+        } // synchronized (entries)
+    }
+
+
+    static GrammarManifest load(File directory) {
+        final GrammarManifest manifest =
+                new GrammarManifest(new File(directory, FILE_NAME));
+        if (manifest.file.exists()) {
+            try {
+                final InputStream in = new FileInputStream(manifest.file);
+                try {
+                    manifest.entries.load(in);
+                } finally {
+                    in.close();
+                }
+                logger.debug("loaded {} verified schema sets from '{}'",
+                        manifest.entries.size(), manifest.file);
+            } catch (IOException e) {
+                /* start over, the manifest will be rewritten */
+                logger.warn("error loading schema manifest '{}': {}",
+                        manifest.file, e.getMessage());
+                manifest.entries.clear();
+            } catch (IllegalArgumentException e) {
+                logger.warn("error loading schema manifest '{}': {}",
+                        manifest.file, e.getMessage());
+                manifest.entries.clear();
+            }
+        }
+        return manifest;
+    }
+
+} // class GrammarManifest
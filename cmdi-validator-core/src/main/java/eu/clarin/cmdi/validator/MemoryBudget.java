@@ -0,0 +1,126 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ * Admission control for files being validated. The memory needed for the
+ * document tree of a file is estimated from it's size and admitted against
+ * a global budget. If not enough budget is left, a thread needs to wait
+ * until other files have been validated. The budget is handed out in a fair
+ * manner, so a large file cannot be starved by a stream of small ones:
+ * threads arriving later wait behind it. An admission may be shared, e.g.
+ * with a thread, that still builds the tree of a file, that timed out. The
+ * memory is only given back, when the last holder releases it.
+ */
+final class MemoryBudget {
+    private static final int UNIT = 1024;
+    private final long budget;
+    private final double factor;
+    private final int units;
+    private final Semaphore available;
+    private final AtomicLong waitCount = new AtomicLong();
+
+
+    MemoryBudget(long budget, double factor) {
+        if (budget < UNIT) {
+            throw new IllegalArgumentException("budget < " + UNIT);
+        }
+        if (factor <= 0) {
+            throw new IllegalArgumentException("factor <= 0");
+        }
+        this.budget    = budget;
+        this.factor    = factor;
+        /* account in kilobytes to stay within range of int */
+        this.units     = (int) Math.min(budget / UNIT, Integer.MAX_VALUE);
+        this.available = new Semaphore(units, true);
+    }
+
+
+    long getBudget() {
+        return budget;
+    }
+
+
+    long estimate(long size) {
+        return (long) Math.ceil(Math.max(size, 0) * factor);
+    }
+
+
+    /*
+     * Returns true, if a file of the given size can be admitted at all.
+     */
+    boolean fits(long size) {
+        return unitsFor(size) <= units;
+    }
+
+
+    Admission acquire(long size) throws InterruptedException {
+        final int n = unitsFor(size);
+        /* unlike tryAcquire(n), this does not barge ahead of waiters */
+        if (!available.tryAcquire(n, 0, TimeUnit.NANOSECONDS)) {
+            waitCount.incrementAndGet();
+            available.acquire(n);
+        }
+        return new Admission(n);
+    }
+
+
+    long getAdmittedMemory() {
+        return (long) (units - available.availablePermits()) * UNIT;
+    }
+
+
+    long getWaitCount() {
+        return waitCount.get();
+    }
+
+
+    private int unitsFor(long size) {
+        final long n = (estimate(size) + UNIT - 1) / UNIT;
+        return (int) Math.max(1, Math.min(n, Integer.MAX_VALUE));
+    }
+
+
+    final class Admission {
+        private final int n;
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+
+        private Admission(int n) {
+            this.n = n;
+        }
+
+
+        void retain() {
+            holders.incrementAndGet();
+        }
+
+
+        void release() {
+            if (holders.decrementAndGet() == 0) {
+                available.release(n);
+            }
+        }
+    } // class Admission
+
+} // class MemoryBudget
@@ -0,0 +1,541 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Performs the steps of validating a file in separate stages. Every stage
+ * has its own threads and hands over the files to the next stage through
+ * a bounded queue, so I/O bound stages (reading, extensions and the
+ * handler) overlap with the CPU bound stages (parsing and Schematron).
+ */
+public class PipelineCMDIValidatorProcessor implements
+        ManagedCMDIValidatorProcessor {
+    public static final class StageStatistics {
+        private final String name;
+        private final int threadCount;
+        private final int queueDepth;
+        private final int queueCapacity;
+        private final long processedCount;
+        private final long busyTime;
+        private final double utilization;
+
+        private StageStatistics(String name,
+                int threadCount,
+                int queueDepth,
+                int queueCapacity,
+                long processedCount,
+                long busyTime,
+                double utilization) {
+            this.name           = name;
+            this.threadCount    = threadCount;
+            this.queueDepth     = queueDepth;
+            this.queueCapacity  = queueCapacity;
+            this.processedCount = processedCount;
+            this.busyTime       = busyTime;
+            this.utilization    = utilization;
+        }
+
+
+        public String getName() {
+            return name;
+        }
+
+
+        public int getThreadCount() {
+            return threadCount;
+        }
+
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+
+        public long getProcessedCount() {
+            return processedCount;
+        }
+
+
+        public long getBusyTime() {
+            return busyTime;
+        }
+
+
+        public double getUtilization() {
+            return utilization;
+        }
+    }
+    public static final class Statistics {
+        private final List<StageStatistics> stages;
+
+        private Statistics(List<StageStatistics> stages) {
+            this.stages = stages;
+        }
+
+
+        public List<StageStatistics> getStages() {
+            return stages;
+        }
+    }
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    private static final Logger logger =
+            LoggerFactory.getLogger(PipelineCMDIValidatorProcessor.class);
+    private static final int BATCH_SIZE = 64;
+    private final Set<CMDIValidator> validators =
+            Collections.newSetFromMap(
+                    new ConcurrentHashMap<CMDIValidator, Boolean>());
+    private final List<Stage> stages = new ArrayList<Stage>(5);
+    private final Stage readStage;
+    private volatile long startTime = -1;
+    private ExecutorService feeders;
+
+
+    public PipelineCMDIValidatorProcessor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    public PipelineCMDIValidatorProcessor(final int threads) {
+        this(2, threads, threads, Math.max(4, threads), 1, DEFAULT_QUEUE_SIZE);
+    }
+
+
+    public PipelineCMDIValidatorProcessor(final int readThreads,
+            final int parseThreads, final int schematronThreads,
+            final int extensionThreads, final int reportThreads,
+            final int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize < 1");
+        }
+
+        /*
+         * step 0: read file into memory
+         */
+        this.readStage = addStage(new Stage("read", readThreads, queueSize) {
+            @Override
+            protected void process(Item item) throws CMDIValidatorException {
+                if (!item.validator.isRunning()) {
+                    /* job was aborted or failed, do not report this file */
+                    item.dropped = true;
+                    item.file.release(true);
+                    return;
+                }
+                item.data = item.validator.readFile(item.file, item.report);
+            }
+        });
+
+        /*
+         * step 1: parse document and perform schema validation
+         */
+        addStage(new Stage("parse", parseThreads, queueSize) {
+            @Override
+            protected void process(Item item)
+                    throws CMDIValidatorException, TimeoutException {
+                if (item.data != null) {
+                    final InputStream data = item.data;
+                    item.data = null;
+                    /*
+                     * the prefetched buffer may still be read by the
+                     * parser, if parsing timed out
+                     */
+                    boolean recycle = false;
+                    try {
+                        item.document = item.validator.parseFile(data,
+                                item.report, item.elapsed);
+                        recycle = true;
+                    } catch (CMDIValidatorException e) {
+                        recycle = true;
+                        throw e;
+                    } finally {
+                        item.file.release(recycle);
+                    }
+                }
+            }
+        });
+
+        /*
+         * step 2: perform Schematron validation
+         */
+        addStage(new Stage("schematron", schematronThreads, queueSize) {
+            @Override
+            protected void process(Item item)
+                    throws CMDIValidatorException, TimeoutException {
+                if ((item.document != null) &&
+                        item.validator.hasSchematronValidation()) {
+                    item.validator.validateSchematron(item.document,
+                            item.report, item.elapsed);
+                }
+            }
+        });
+
+        /*
+         * step 3: run extensions, if any
+         */
+        addStage(new Stage("extensions", extensionThreads, queueSize) {
+            @Override
+            protected void process(Item item)
+                    throws CMDIValidatorException, TimeoutException {
+                final XdmNode document = item.document;
+                item.document = null;
+                if ((document != null) && item.validator.hasExtensions()) {
+                    item.validator.validateExtensions(document,
+                            item.report, item.elapsed);
+                }
+            }
+        });
+
+        /*
+         * step 4: hand report to handler
+         */
+        addStage(new Stage("report", reportThreads, queueSize) {
+            @Override
+            protected void process(Item item) throws CMDIValidatorException {
+                if (item.timeout != null) {
+                    item.validator.deliverTimedOut(item.report, item.file,
+                            item.timeout);
+                } else {
+                    item.validator.deliverReport(item.report);
+                }
+            }
+        });
+    }
+
+
+    @Override
+    public synchronized void start() {
+        if (feeders != null) {
+            throw new IllegalStateException("engine already started");
+        }
+        feeders = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger id = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable target) {
+                final Thread thread = new Thread(target,
+                        String.format("feeder-%02x", id.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (Stage stage : stages) {
+            stage.start();
+        }
+        startTime = System.nanoTime();
+    }
+
+
+    @Override
+    public synchronized void shutdown() {
+        logger.debug("shutdown validation processor");
+        if (feeders != null) {
+            feeders.shutdownNow();
+        }
+        for (Stage stage : stages) {
+            stage.shutdown();
+        }
+        for (Stage stage : stages) {
+            stage.awaitTermination(5000);
+        }
+
+        /* unfinished jobs would never be finished otherwise */
+        for (CMDIValidator validator : validators) {
+            try {
+                validator.shutdownJob();
+            } catch (CMDIValidatorException e) {
+                logger.error("error finishing validator: {}",
+                        e.getMessage(), e);
+            }
+        }
+        validators.clear();
+    }
+
+
+    @Override
+    public CMDIValidatorJob process(final CMDIValidator validator)
+            throws CMDIValidatorException {
+        if (validator == null) {
+            throw new NullPointerException("validator == null");
+        }
+        final ExecutorService feeders;
+        synchronized (this) {
+            if (this.feeders == null) {
+                throw new IllegalStateException("engine not started");
+            }
+            feeders = this.feeders;
+        } // synchronized (this)
+        if (!validators.add(validator)) {
+            throw new CMDIValidatorException("already processing this validator");
+        }
+        try {
+            feeders.execute(new Feeder(new Job(validator)));
+        } catch (RejectedExecutionException e) {
+            validators.remove(validator);
+            throw new CMDIValidatorException("engine was shut down", e);
+        }
+        return validator.getJob();
+    }
+
+
+    public Statistics getStatistics() {
+        final long now = System.nanoTime();
+        final List<StageStatistics> result =
+                new ArrayList<StageStatistics>(stages.size());
+        for (Stage stage : stages) {
+            final long busyTime = stage.busyTime.get();
+            double utilization = 0.0;
+            if ((startTime != -1) && (now > startTime)) {
+                utilization = (double) busyTime /
+                        ((double) (now - startTime) * stage.threads);
+            }
+            result.add(new StageStatistics(stage.name,
+                    stage.threads,
+                    stage.queue.size(),
+                    stage.queueSize,
+                    stage.processedCount.get(),
+                    TimeUnit.NANOSECONDS.toMillis(busyTime),
+                    Math.min(1.0, utilization)));
+        }
+        return new Statistics(Collections.unmodifiableList(result));
+    }
+
+
+    private Stage addStage(Stage stage) {
+        if (!stages.isEmpty()) {
+            stages.get(stages.size() - 1).next = stage;
+        }
+        stages.add(stage);
+        return stage;
+    }
+
+
+    private final class Job {
+        private final CMDIValidator validator;
+        /* the feeder holds one reference until all files are submitted */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+
+        private Job(CMDIValidator validator) {
+            this.validator = validator;
+        }
+
+
+        private void release() {
+            if (pending.decrementAndGet() == 0) {
+                validators.remove(validator);
+                try {
+                    validator.finishJob();
+                } catch (CMDIValidatorException e) {
+                    logger.error("error finishing validator: {}",
+                            e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+
+    private static final class Item {
+        private final Job job;
+        private final CMDIValidator validator;
+        private final FileEntry file;
+        private final CMDIWriteableValidatonReportImpl report =
+                new CMDIWriteableValidatonReportImpl();
+        private InputStream data;
+        private XdmNode document;
+        /* time spent in the steps so far (in milliseconds) */
+        private long elapsed;
+        private TimeoutException timeout;
+        private boolean dropped;
+        private boolean failed;
+
+
+        private Item(Job job, FileEntry file) {
+            this.job       = job;
+            this.validator = job.validator;
+            this.file      = file;
+        }
+    }
+
+
+    private final class Feeder implements Runnable {
+        private final Job job;
+
+
+        private Feeder(Job job) {
+            this.job = job;
+        }
+
+
+        @Override
+        public void run() {
+            final CMDIValidator validator = job.validator;
+            try {
+                if (validator.startJob()) {
+                    final FileEntry[] batch = new FileEntry[BATCH_SIZE];
+                    while (validator.isRunning()) {
+                        final int count = validator.nextFiles(batch);
+                        if (count == 0) {
+                            break;
+                        }
+                        for (int i = 0; i < count; i++) {
+                            job.pending.incrementAndGet();
+                            readStage.queue.put(new Item(job, batch[i]));
+                            batch[i] = null;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.debug("job was interrupted");
+                /* the item, that was not handed over */
+                job.pending.decrementAndGet();
+                validator.abort();
+            } catch (CMDIValidatorException e) {
+                logger.error("error processing validator: {}",
+                        e.getMessage(), e);
+            } finally {
+                job.release();
+            }
+        }
+    }
+
+
+    private abstract class Stage implements Runnable {
+        private final String name;
+        private final int threads;
+        private final int queueSize;
+        private final BlockingQueue<Item> queue;
+        private final AtomicLong processedCount = new AtomicLong();
+        private final AtomicLong busyTime = new AtomicLong();
+        private final List<Thread> workers = new ArrayList<Thread>();
+        private Stage next;
+
+
+        private Stage(String name, int threads, int queueSize) {
+            if (threads < 1) {
+                throw new IllegalArgumentException(name + " threads < 1");
+            }
+            this.name      = name;
+            this.threads   = threads;
+            this.queueSize = queueSize;
+            this.queue     = new ArrayBlockingQueue<Item>(queueSize);
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    final Item item = queue.take();
+                    /*
+                     * skip remaining steps for failed files, but still
+                     * deliver the report in the final stage
+                     */
+                    if (!item.dropped && (!item.failed || (next == null))) {
+                        final long begin = System.nanoTime();
+                        try {
+                            process(item);
+                        } catch (TimeoutException e) {
+                            item.timeout = e;
+                            item.failed = true;
+                            item.data = null;
+                            item.document = null;
+                        } catch (CMDIValidatorException e) {
+                            logger.error("error processing validator: {}",
+                                    e.getMessage(), e);
+                            item.failed = true;
+                            item.data = null;
+                            item.document = null;
+                        } finally {
+                            final long time = System.nanoTime() - begin;
+                            busyTime.addAndGet(time);
+                            item.elapsed += TimeUnit.NANOSECONDS.toMillis(time);
+                            processedCount.incrementAndGet();
+                        }
+                    }
+                    if (next != null) {
+                        next.queue.put(item);
+                    } else {
+                        item.job.release();
+                    }
+                } // for
+            } catch (InterruptedException e) {
+                /* processor is shut down */
+            }
+        }
+
+
+        protected abstract void process(Item item)
+                throws CMDIValidatorException, TimeoutException;
+
+
+        private void start() {
+            for (int i = 0; i < threads; i++) {
+                final Thread thread = new Thread(this,
+                        String.format("%s-%02x", name, i));
+                thread.setDaemon(true);
+                workers.add(thread);
+                thread.start();
+            }
+        }
+
+
+        private void shutdown() {
+            for (Thread thread : workers) {
+                thread.interrupt();
+            }
+        }
+
+
+        private void awaitTermination(long timeout) {
+            try {
+                for (Thread thread : workers) {
+                    thread.join(timeout);
+                }
+            } catch (InterruptedException e) {
+                /* IGNORE */
+            }
+            workers.clear();
+        }
+    }
+
+} // class PipelineCMDIValidatorProcessor
@@ -0,0 +1,244 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Hands reports to the handler on dedicated delivery threads, so a slow
+ * handler does not directly throttle validation. Reports are delivered in
+ * batches. If the queue is full, validation threads need to wait until the
+ * handler has caught up (back-pressure).
+ */
+final class ReportDispatcher {
+    private static final Logger logger =
+            LoggerFactory.getLogger(ReportDispatcher.class);
+    private final CMDIValidationHandler handler;
+    private final BlockingQueue<CMDIValidationReport> queue;
+    private final int queueSize;
+    private final int threads;
+    private final int batchSize;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong handlerTime = new AtomicLong();
+    private final AtomicLong stallCount = new AtomicLong();
+    private volatile boolean closing = false;
+    private volatile CMDIValidatorException failure;
+
+
+    ReportDispatcher(CMDIValidationHandler handler, int queueSize,
+            int threads, int batchSize) {
+        if (handler == null) {
+            throw new NullPointerException("handler == null");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize < 1");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize < 1");
+        }
+        this.handler   = handler;
+        this.queue     =
+                new ArrayBlockingQueue<CMDIValidationReport>(queueSize);
+        this.queueSize = queueSize;
+        this.threads   = threads;
+        this.batchSize = batchSize;
+    }
+
+
+    void dispatch(CMDIValidationReport report) throws CMDIValidatorException {
+        checkFailure();
+        startWorkers();
+        try {
+            if (!queue.offer(report)) {
+                /* handler is lagging behind */
+                stallCount.incrementAndGet();
+                while (!queue.offer(report, 100, TimeUnit.MILLISECONDS)) {
+                    /* do not wait forever, if the handler failed */
+                    checkFailure();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CMDIValidatorException(
+                    "interrupted while delivering report", e);
+        }
+    }
+
+
+    /*
+     * Wait until all queued reports have been delivered and stop the
+     * delivery threads.
+     */
+    void drain() throws CMDIValidatorException {
+        final List<Thread> threads;
+        synchronized (workers) {
+            closing = true;
+            threads = new ArrayList<Thread>(workers);
+            workers.clear();
+        } // synchronized (workers)
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CMDIValidatorException(
+                    "interrupted while draining reports", e);
+        }
+        /* a report may have been queued after the last thread left */
+        if (failure == null) {
+            final List<CMDIValidationReport> batch =
+                    new ArrayList<CMDIValidationReport>(batchSize);
+            while (queue.drainTo(batch, batchSize) > 0) {
+                deliver(batch);
+                batch.clear();
+            }
+        }
+        checkFailure();
+    }
+
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+
+    int getQueueCapacity() {
+        return queueSize;
+    }
+
+
+    long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+
+    long getBatchCount() {
+        return batchCount.get();
+    }
+
+
+    long getHandlerTime() {
+        return handlerTime.get() / 1000000L;
+    }
+
+
+    long getStallCount() {
+        return stallCount.get();
+    }
+
+
+    private void startWorkers() {
+        synchronized (workers) {
+            if (closing || !workers.isEmpty()) {
+                return;
+            }
+            for (int i = 0; i < threads; i++) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverReports();
+                    }
+                }, String.format("report-dispatcher-%02x", i));
+                thread.setDaemon(true);
+                workers.add(thread);
+                thread.start();
+            }
+        } // synchronized (workers)
+    }
+
+
+    private void deliverReports() {
+        final List<CMDIValidationReport> batch =
+                new ArrayList<CMDIValidationReport>(batchSize);
+        try {
+            while (failure == null) {
+                final CMDIValidationReport report =
+                        queue.poll(100, TimeUnit.MILLISECONDS);
+                if (report == null) {
+                    if (closing) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(report);
+                queue.drainTo(batch, batchSize - 1);
+                deliver(batch);
+                batch.clear();
+            } // while
+        } catch (InterruptedException e) {
+            logger.debug("report delivery was interrupted");
+        }
+    }
+
+
+    private void deliver(List<CMDIValidationReport> batch) {
+        final long start = System.nanoTime();
+        try {
+            if (handler instanceof CMDIBatchValidationHandler) {
+                ((CMDIBatchValidationHandler) handler)
+                        .onValidationReports(batch);
+            } else {
+                for (CMDIValidationReport report : batch) {
+                    handler.onValidationReport(report);
+                }
+            }
+        } catch (CMDIValidatorException e) {
+            failed(e);
+        } catch (Throwable e) {
+            failed(new CMDIValidatorException(
+                    "an unexpected error occurred", e));
+        } finally {
+            handlerTime.addAndGet(System.nanoTime() - start);
+            batchCount.incrementAndGet();
+            deliveredCount.addAndGet(batch.size());
+        }
+    }
+
+
+    private void failed(CMDIValidatorException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        logger.debug("error delivering reports", e);
+        /* unblock any thread waiting for room in the queue */
+        queue.clear();
+    }
+
+
+    private void checkFailure() throws CMDIValidatorException {
+        final CMDIValidatorException e = failure;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+} // class ReportDispatcher
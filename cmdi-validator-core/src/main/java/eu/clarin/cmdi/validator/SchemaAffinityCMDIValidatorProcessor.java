@@ -0,0 +1,525 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Routes files to worker lanes by their schema (as announced by the
+ * xsi:schemaLocation attribute), so files of the same profile are
+ * validated by the same lane. All contexts share one grammar pool and
+ * symbol table, so this no longer saves compiling grammars. But the
+ * grammar, its content models and the symbols of a profile stay hot in the
+ * caches of the core running the lane, and the first files of a new profile
+ * queue up on one lane instead of all workers waiting for the same grammar
+ * to be compiled.
+ * Schemas are mapped to lanes by consistent hashing. If the lane of a
+ * (hot) schema is full, the file spills over to the next lane on the ring.
+ * The dispatcher only enumerates files. Idle workers sniff the schema of
+ * unrouted files, so reading the file headers happens in parallel (and
+ * from memory, if files are prefetched). Workers without work sleep, until
+ * a file is routed to their lane or an unrouted file is waiting.
+ */
+public class SchemaAffinityCMDIValidatorProcessor implements
+        ManagedCMDIValidatorProcessor {
+    public static final class Statistics {
+        private final long routedCount;
+        private final long spilledCount;
+        private final long lanesFullCount;
+        private final long unknownSchemaCount;
+        private final int queuedCount;
+
+        private Statistics(long routedCount,
+                long spilledCount,
+                long lanesFullCount,
+                long unknownSchemaCount,
+                int queuedCount) {
+            this.routedCount        = routedCount;
+            this.spilledCount       = spilledCount;
+            this.lanesFullCount     = lanesFullCount;
+            this.unknownSchemaCount = unknownSchemaCount;
+            this.queuedCount        = queuedCount;
+        }
+
+
+        public long getRoutedCount() {
+            return routedCount;
+        }
+
+
+        public long getSpilledCount() {
+            return spilledCount;
+        }
+
+
+        public long getLanesFullCount() {
+            return lanesFullCount;
+        }
+
+
+        public long getUnknownSchemaCount() {
+            return unknownSchemaCount;
+        }
+
+
+        public int getQueuedCount() {
+            return queuedCount;
+        }
+    }
+    private static final Logger logger =
+            LoggerFactory.getLogger(SchemaAffinityCMDIValidatorProcessor.class);
+    private static final int DEFAULT_LANE_QUEUE_SIZE = 16;
+    private static final int VIRTUAL_NODES = 32;
+    private static final int BATCH_SIZE = 64;
+    private final int lanes;
+    private final TreeMap<Integer, Integer> ring =
+            new TreeMap<Integer, Integer>();
+    private final List<BlockingQueue<Item>> queues;
+    /* files, that have not been routed to a lane, yet */
+    private final BlockingQueue<Item> intake;
+    /* idle workers wait for their lane or the intake to get files */
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private final List<Condition> wakeUp;
+    private final BitSet idle;
+    private final Set<CMDIValidator> validators =
+            Collections.newSetFromMap(
+                    new ConcurrentHashMap<CMDIValidator, Boolean>());
+    private final AtomicLong routedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong lanesFullCount = new AtomicLong();
+    private final AtomicLong unknownSchemaCount = new AtomicLong();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private ExecutorService dispatchers;
+
+
+    public SchemaAffinityCMDIValidatorProcessor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    public SchemaAffinityCMDIValidatorProcessor(final int lanes) {
+        this(lanes, DEFAULT_LANE_QUEUE_SIZE);
+    }
+
+
+    public SchemaAffinityCMDIValidatorProcessor(final int lanes,
+            final int laneQueueSize) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("lanes < 1");
+        }
+        if (laneQueueSize < 1) {
+            throw new IllegalArgumentException("laneQueueSize < 1");
+        }
+        this.lanes         = lanes;
+        this.queues        = new ArrayList<BlockingQueue<Item>>(lanes);
+        this.intake        =
+                new ArrayBlockingQueue<Item>(lanes * laneQueueSize);
+        this.wakeUp        = new ArrayList<Condition>(lanes);
+        this.idle          = new BitSet(lanes);
+        for (int i = 0; i < lanes; i++) {
+            queues.add(new ArrayBlockingQueue<Item>(laneQueueSize));
+            wakeUp.add(idleLock.newCondition());
+            for (int j = 0; j < VIRTUAL_NODES; j++) {
+                ring.put(hash("lane-" + i + "#" + j), Integer.valueOf(i));
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void start() {
+        if (dispatchers != null) {
+            throw new IllegalStateException("engine already started");
+        }
+        dispatchers = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger id = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable target) {
+                final Thread thread = new Thread(target,
+                        String.format("dispatcher-%02x", id.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < lanes; i++) {
+            final Thread thread = new Thread(new Worker(i),
+                    String.format("worker-%02x", i));
+            thread.setDaemon(true);
+            workers.add(thread);
+            thread.start();
+        }
+    }
+
+
+    @Override
+    public synchronized void shutdown() {
+        logger.debug("shutdown validation processor");
+        if (dispatchers != null) {
+            dispatchers.shutdownNow();
+        }
+        for (Thread thread : workers) {
+            thread.interrupt();
+        }
+        try {
+            for (Thread thread : workers) {
+                thread.join(5000);
+            }
+        } catch (InterruptedException e) {
+            /* IGNORE */
+        }
+        workers.clear();
+
+        /* unfinished jobs would never be finished otherwise */
+        for (CMDIValidator validator : validators) {
+            try {
+                validator.shutdownJob();
+            } catch (CMDIValidatorException e) {
+                logger.error("error finishing validator: {}",
+                        e.getMessage(), e);
+            }
+        }
+        validators.clear();
+    }
+
+
+    @Override
+    public CMDIValidatorJob process(final CMDIValidator validator)
+            throws CMDIValidatorException {
+        if (validator == null) {
+            throw new NullPointerException("validator == null");
+        }
+        final ExecutorService dispatchers;
+        synchronized (this) {
+            if (this.dispatchers == null) {
+                throw new IllegalStateException("engine not started");
+            }
+            dispatchers = this.dispatchers;
+        } // synchronized (this)
+        if (!validators.add(validator)) {
+            throw new CMDIValidatorException("already processing this validator");
+        }
+        try {
+            dispatchers.execute(new Dispatcher(new Job(validator)));
+        } catch (RejectedExecutionException e) {
+            validators.remove(validator);
+            throw new CMDIValidatorException("engine was shut down", e);
+        }
+        return validator.getJob();
+    }
+
+
+    public Statistics getStatistics() {
+        int queued = intake.size();
+        for (BlockingQueue<Item> queue : queues) {
+            queued += queue.size();
+        }
+        return new Statistics(routedCount.get(),
+                spilledCount.get(),
+                lanesFullCount.get(),
+                unknownSchemaCount.get(),
+                queued);
+    }
+
+
+    /* wake up the worker of a lane, if it is idle */
+    private void signalLane(int lane) {
+        idleLock.lock();
+        try {
+            if (idle.get(lane)) {
+                idle.clear(lane);
+                wakeUp.get(lane).signal();
+            }
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+
+    /* wake up any idle worker to route a file from the intake */
+    private void signalIntake() {
+        idleLock.lock();
+        try {
+            final int lane = idle.nextSetBit(0);
+            if (lane != -1) {
+                idle.clear(lane);
+                wakeUp.get(lane).signal();
+            }
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+
+    /*
+     * Route a file to the lane of its schema or, if that lane is full, to
+     * the next lane on the ring, that has room. Returns the lane, the file
+     * was routed to, or -1 if all lanes are full.
+     */
+    private int route(Item item, String schema) {
+        final int h = hash(schema);
+        Map.Entry<Integer, Integer> entry = ring.ceilingEntry(h);
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        final int primary = entry.getValue().intValue();
+        if (queues.get(primary).offer(item)) {
+            routedCount.incrementAndGet();
+            signalLane(primary);
+            return primary;
+        }
+
+        /*
+         * lane is full, so walk the ring and spill over to the next lane,
+         * that has room. Lanes are visited in ring order, so a hot schema
+         * will always spill over to the same few lanes. Every lane owns
+         * several nodes on the ring, so keep track of the lanes tried.
+         */
+        final BitSet tried = new BitSet(lanes);
+        tried.set(primary);
+        Map.Entry<Integer, Integer> next = entry;
+        while (tried.cardinality() < lanes) {
+            next = ring.higherEntry(next.getKey());
+            if (next == null) {
+                next = ring.firstEntry();
+            }
+            final int lane = next.getValue().intValue();
+            if (tried.get(lane)) {
+                continue;
+            }
+            tried.set(lane);
+            if (queues.get(lane).offer(item)) {
+                spilledCount.incrementAndGet();
+                signalLane(lane);
+                return lane;
+            }
+        }
+        return -1;
+    }
+
+
+    private static int hash(String s) {
+        /* spread the bits of String.hashCode() (murmur3 finalizer) */
+        int h = s.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        h ^= (h >>> 16);
+        return h;
+    }
+
+
+    private final class Job {
+        private final CMDIValidator validator;
+        /* the dispatcher holds one reference until all files are routed */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+
+        private Job(CMDIValidator validator) {
+            this.validator = validator;
+        }
+
+
+        private void release() {
+            if (pending.decrementAndGet() == 0) {
+                validators.remove(validator);
+                try {
+                    validator.finishJob();
+                } catch (CMDIValidatorException e) {
+                    logger.error("error finishing validator: {}",
+                            e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+
+    private static final class Item {
+        private final Job job;
+        private final FileEntry file;
+
+
+        private Item(Job job, FileEntry file) {
+            this.job  = job;
+            this.file = file;
+        }
+    }
+
+
+    private final class Dispatcher implements Runnable {
+        private final Job job;
+
+
+        private Dispatcher(Job job) {
+            this.job = job;
+        }
+
+
+        @Override
+        public void run() {
+            final CMDIValidator validator = job.validator;
+            try {
+                if (validator.startJob()) {
+                    final FileEntry[] batch = new FileEntry[BATCH_SIZE];
+                    while (validator.isRunning()) {
+                        final int count = validator.nextFiles(batch);
+                        if (count == 0) {
+                            break;
+                        }
+                        for (int i = 0; i < count; i++) {
+                            /* the workers will sniff and route the file */
+                            job.pending.incrementAndGet();
+                            try {
+                                intake.put(new Item(job, batch[i]));
+                            } catch (InterruptedException e) {
+                                job.pending.decrementAndGet();
+                                throw e;
+                            }
+                            signalIntake();
+                            batch[i] = null;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.debug("job was interrupted");
+                validator.abort();
+            } catch (CMDIValidatorException e) {
+                logger.error("error processing validator: {}",
+                        e.getMessage(), e);
+            } finally {
+                job.release();
+            }
+        }
+    }
+
+
+    private final class Worker implements Runnable {
+        private final int lane;
+
+
+        private Worker(int lane) {
+            this.lane = lane;
+        }
+
+
+        @Override
+        public void run() {
+            final BlockingQueue<Item> queue = queues.get(lane);
+            try {
+                for (;;) {
+                    Item item = queue.poll();
+                    if (item == null) {
+                        /* nothing to do on this lane, so help routing */
+                        item = intake.poll();
+                        if (item == null) {
+                            awaitWork(queue);
+                            continue;
+                        }
+                        if (!dispatch(item)) {
+                            continue;
+                        }
+                    }
+                    validate(item);
+                } // for
+            } catch (InterruptedException e) {
+                /* processor is shut down */
+            }
+        }
+
+
+        /*
+         * Sleep, until a file is routed to this lane or waits for being
+         * routed. The queues are checked while holding the lock, that
+         * signalling takes after adding a file, so no wake-up is lost.
+         */
+        private void awaitWork(BlockingQueue<Item> queue)
+                throws InterruptedException {
+            idleLock.lock();
+            try {
+                while (queue.isEmpty() && intake.isEmpty()) {
+                    idle.set(lane);
+                    wakeUp.get(lane).await();
+                }
+            } finally {
+                idle.clear(lane);
+                idleLock.unlock();
+            }
+        }
+
+
+        /*
+         * Sniff the schema of an unrouted file and pass it on to its lane.
+         * Returns true, if this worker should validate the file itself,
+         * i.e. if the file belongs to this lane, has no known schema or all
+         * lanes are full.
+         */
+        private boolean dispatch(Item item) {
+            if (!item.job.validator.isRunning()) {
+                item.job.release();
+                return false;
+            }
+            final String schema = SchemaLocationSniffer.sniff(item.file);
+            if (schema == null) {
+                /* no affinity, so just validate it here */
+                unknownSchemaCount.incrementAndGet();
+                return true;
+            }
+            final int target = route(item, schema);
+            if (target == -1) {
+                lanesFullCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+
+        private void validate(Item item) {
+            try {
+                if (item.job.validator.isRunning()) {
+                    item.job.validator.validateFile(item.file, lane);
+                }
+            } catch (CMDIValidatorException e) {
+                logger.error("error processing validator: {}",
+                        e.getMessage(), e);
+            } finally {
+                item.job.release();
+            }
+        }
+    }
+
+} // class SchemaAffinityCMDIValidatorProcessor
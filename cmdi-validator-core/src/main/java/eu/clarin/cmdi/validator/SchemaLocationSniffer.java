@@ -0,0 +1,94 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Cheaply determine the schema (i.e. profile) of a file by looking for the
+ * xsi:schemaLocation attribute within the first few kilobytes of the file,
+ * without actually parsing it.
+ */
+final class SchemaLocationSniffer {
+    private static final Logger logger =
+            LoggerFactory.getLogger(SchemaLocationSniffer.class);
+    private static final int SNIFF_SIZE = 4096;
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final Pattern SCHEMA_LOCATION = Pattern.compile(
+            ":(?:noNamespaceS|s)chemaLocation\\s*=\\s*(\"|')(.*?)\\1",
+            Pattern.DOTALL);
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+
+    private SchemaLocationSniffer() {
+    }
+
+
+    /*
+     * Returns the normalized value of the schemaLocation attribute or null,
+     * if it could not be determined.
+     */
+    static String sniff(FileEntry file) {
+        try {
+            final InputStream stream = file.openStream();
+            try {
+                final byte[] buffer = new byte[SNIFF_SIZE];
+                int count = 0;
+                while (count < buffer.length) {
+                    final int n =
+                            stream.read(buffer, count, buffer.length - count);
+                    if (n == -1) {
+                        break;
+                    }
+                    count += n;
+                }
+                return sniff(buffer, count);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            logger.debug("error sniffing schema location of '{}'", file, e);
+            return null;
+        }
+    }
+
+
+    static String sniff(byte[] data, int length) {
+        /*
+         * Latin-1 maps every byte to a char, which is good enough to find
+         * an attribute in ASCII compatible encodings
+         */
+        final String header = new String(data, 0,
+                Math.min(length, SNIFF_SIZE), LATIN1);
+        final Matcher m = SCHEMA_LOCATION.matcher(header);
+        if (m.find()) {
+            final String value = WHITESPACE.matcher(m.group(2).trim())
+                    .replaceAll(" ");
+            return value.isEmpty() ? null : value;
+        }
+        return null;
+    }
+
+} // class SchemaLocationSniffer
@@ -0,0 +1,227 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Scans the corpus for the schemas referenced by the files and downloads and
+ * compiles all of them in parallel before validation starts. Otherwise, the
+ * first file of every profile would need to wait for this on a worker
+ * thread, often with other workers waiting for the same download. Only the
+ * first few kilobytes of each file are read to find the schema location.
+ * Loading more schemas than the grammar cache can hold would only evict the
+ * ones loaded before, so only the most frequently used schemas are loaded.
+ */
+final class SchemaWarmUp {
+    private static final Logger logger =
+            LoggerFactory.getLogger(SchemaWarmUp.class);
+    private static final int BATCH_SIZE = 64;
+    private static final Comparator<Map.Entry<String, AtomicInteger>>
+            MOST_FREQUENT_FIRST =
+                new Comparator<Map.Entry<String, AtomicInteger>>() {
+                    @Override
+                    public int compare(Map.Entry<String, AtomicInteger> e1,
+                            Map.Entry<String, AtomicInteger> e2) {
+                        return Integer.compare(e2.getValue().get(),
+                                e1.getValue().get());
+                    }
+                };
+    private final FileEntry root;
+    private final FileFilter filter;
+    private final int threads;
+    private final SharedXMLGrammarPool pool;
+
+
+    SchemaWarmUp(FileEntry root, FileFilter filter, int threads,
+            SharedXMLGrammarPool pool) {
+        if (root == null) {
+            throw new NullPointerException("root == null");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1");
+        }
+        if (pool == null) {
+            throw new NullPointerException("pool == null");
+        }
+        this.root    = root;
+        this.filter  = filter;
+        this.threads = threads;
+        this.pool    = pool;
+    }
+
+
+    CMDIValidator.WarmUpStatistics run() throws CMDIValidatorException {
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+            private final AtomicInteger id = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable target) {
+                final Thread thread = new Thread(target,
+                        String.format("schema-warm-up-%02x",
+                                id.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            /*
+             * find all distinct schemas ...
+             */
+            final FileEnumerator files =
+                    FileEnumerator.newInstance(root, filter, 0, 1, 0, null, 0);
+            final ConcurrentHashMap<String, AtomicInteger> schemas =
+                    new ConcurrentHashMap<String, AtomicInteger>();
+            final AtomicLong scannedCount = new AtomicLong();
+            final List<Future<Boolean>> scans =
+                    new ArrayList<Future<Boolean>>(threads);
+            for (int i = 0; i < threads; i++) {
+                scans.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        final FileEntry[] batch = new FileEntry[BATCH_SIZE];
+                        int count;
+                        while ((count = files.nextFiles(batch)) > 0) {
+                            for (int j = 0; j < count; j++) {
+                                final String location =
+                                        SchemaLocationSniffer.sniff(batch[j]);
+                                if (location != null) {
+                                    addSchemas(schemas, location);
+                                }
+                                batch[j] = null;
+                            }
+                            scannedCount.addAndGet(count);
+                        }
+                        return Boolean.TRUE;
+                    }
+                }));
+            }
+            await(scans);
+            logger.debug("warm-up found {} distinct schemas in {} files",
+                    schemas.size(), scannedCount.get());
+
+            /*
+             * ... and load the most frequent ones into the grammar pool
+             */
+            final List<Map.Entry<String, AtomicInteger>> ranked =
+                    new ArrayList<Map.Entry<String, AtomicInteger>>(
+                            schemas.entrySet());
+            Collections.sort(ranked, MOST_FREQUENT_FIRST);
+            final int count = Math.min(ranked.size(), pool.getMaxSize());
+            if (count < ranked.size()) {
+                logger.debug("grammar cache is full, skipping warm-up of " +
+                        "{} schemas", ranked.size() - count);
+            }
+            final List<Future<Boolean>> loads =
+                    new ArrayList<Future<Boolean>>(count);
+            for (int i = 0; i < count; i++) {
+                final String schema = ranked.get(i).getKey();
+                final int idx = schema.indexOf(' ');
+                final String namespace = schema.substring(0, idx);
+                final String location = schema.substring(idx + 1);
+                loads.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        final boolean loaded =
+                                pool.preload(namespace, location);
+                        if (!loaded) {
+                            logger.debug("warm-up failed to load schema " +
+                                    "{} / {}", namespace, location);
+                        }
+                        return Boolean.valueOf(loaded);
+                    }
+                }));
+            }
+            int failedCount = 0;
+            for (Boolean loaded : await(loads)) {
+                if (!loaded.booleanValue()) {
+                    failedCount++;
+                }
+            }
+            return new CMDIValidator.WarmUpStatistics(scannedCount.get(),
+                    schemas.size(),
+                    failedCount,
+                    ranked.size() - count,
+                    (System.nanoTime() - start) / 1000000L);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    private static void addSchemas(
+            ConcurrentHashMap<String, AtomicInteger> schemas,
+            String location) {
+        /*
+         * xsi:schemaLocation holds pairs of namespace and location, a
+         * single value is an xsi:noNamespaceSchemaLocation and cannot be
+         * served from the pool
+         */
+        final String[] values = location.split(" ");
+        for (int i = 0; (i + 1) < values.length; i += 2) {
+            final String schema = values[i] + ' ' + values[i + 1];
+            AtomicInteger count = schemas.get(schema);
+            if (count == null) {
+                count = new AtomicInteger();
+                final AtomicInteger c = schemas.putIfAbsent(schema, count);
+                if (c != null) {
+                    count = c;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+
+    private static List<Boolean> await(List<Future<Boolean>> tasks)
+            throws CMDIValidatorException {
+        final List<Boolean> results = new ArrayList<Boolean>(tasks.size());
+        try {
+            for (Future<Boolean> task : tasks) {
+                results.add(task.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CMDIValidatorException(
+                    "interrupted during schema warm-up", e);
+        } catch (ExecutionException e) {
+            throw new CMDIValidatorException(
+                    "error during schema warm-up", e.getCause());
+        }
+    }
+
+} // class SchemaWarmUp
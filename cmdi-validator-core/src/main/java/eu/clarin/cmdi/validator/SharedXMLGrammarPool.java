@@ -0,0 +1,944 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xerces.impl.XMLEntityManager;
+import org.apache.xerces.impl.xs.SchemaGrammar;
+import org.apache.xerces.impl.xs.XMLSchemaLoader;
+import org.apache.xerces.impl.xs.XSDDescription;
+import org.apache.xerces.util.SymbolTable;
+import org.apache.xerces.util.XMLResourceIdentifierImpl;
+import org.apache.xerces.xni.XMLResourceIdentifier;
+import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.apache.xerces.xni.parser.XMLEntityResolver;
+import org.apache.xerces.xni.parser.XMLErrorHandler;
+import org.apache.xerces.xni.parser.XMLInputSource;
+import org.apache.xerces.xni.parser.XMLParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * A grammar pool shared by all parsers of a validator, so every schema is
+ * compiled once and not once per thread. Grammars cached before the pool is
+ * locked (i.e. the schema for the XML namespace) are permanent and found by
+ * namespace. All other grammars are found by namespace and location.
+ * Xerces grammars are immutable once they have been built, so lookups do
+ * not need any locking.
+ *
+ * If a grammar is not found, the pool compiles it right away, which allows
+ * to measure the time spent compiling. If that fails, the parser compiles
+ * the grammar by itself and reports any errors. A grammar is only compiled
+ * by one thread at a time, other threads needing it wait for the result.
+ * Failures are remembered for a short while, so a broken or unreachable
+ * schema is not compiled over and over again for every file.
+ *
+ * The pool is bounded by the number of grammars and optionally by their
+ * approximate size, which is derived from the size of the schema
+ * documents. If the pool is full, the least recently used grammar is
+ * evicted. With the TINY_LFU policy, a new grammar is only admitted, if it
+ * has been requested more often than the (first) grammar it would replace,
+ * so rarely used schemas cannot flush frequently used ones out of the pool.
+ *
+ * Full schema checking is expensive. If a manifest is available, the content
+ * hash of every schema set, that passed full checking, is recorded, and
+ * later runs compile an unchanged schema set without those checks.
+ */
+final class SharedXMLGrammarPool implements XMLGrammarPool {
+    private static final Logger logger =
+            LoggerFactory.getLogger(SharedXMLGrammarPool.class);
+    private static final String XML_SCHEMA_GRAMMAR_TYPE =
+            "http://www.w3.org/2001/XMLSchema";
+    private static final String GRAMMAR_POOL =
+            "http://apache.org/xml/properties/internal/grammar-pool";
+    private static final String SCHEMA_FULL_CHECKING_FEATURE_ID =
+            "http://apache.org/xml/features/validation/schema-full-checking";
+    private static final String HONOUR_ALL_SCHEMA_LOCATIONS_ID =
+            "http://apache.org/xml/features/honour-all-schemaLocations";
+    /* compiled grammars need a multiple of the memory of their source */
+    private static final int WEIGHT_FACTOR = 4;
+    private static final long DEFAULT_WEIGHT = 64 * 1024;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final long FAILURE_TTL = TimeUnit.SECONDS.toNanos(30);
+    private static final Grammar[] EMPTY = new Grammar[0];
+    /*
+     * Xerces does not offer a public way to mark a grammar as checked, so
+     * fall back to always checking, if the internals cannot be accessed.
+     */
+    private static final Field FULL_CHECKED_FIELD;
+    private static final Method SET_UNCHECKED_TYPE_NUM_METHOD;
+    static {
+        Field field = null;
+        Method method = null;
+        try {
+            field = SchemaGrammar.class.getDeclaredField("fFullChecked");
+            field.setAccessible(true);
+            method = SchemaGrammar.class.getDeclaredMethod(
+                    "setUncheckedTypeNum", int.class);
+            method.setAccessible(true);
+        } catch (Exception e) {
+            LoggerFactory.getLogger(SharedXMLGrammarPool.class)
+                .debug("cannot skip full schema checking: {}", e.getMessage());
+            field  = null;
+            method = null;
+        }
+        FULL_CHECKED_FIELD = field;
+        SET_UNCHECKED_TYPE_NUM_METHOD = method;
+    }
+    private static final XMLErrorHandler ERROR_HANDLER =
+            new XMLErrorHandler() {
+        @Override
+        public void warning(String domain, String key,
+                XMLParseException e) throws XNIException {
+            /* ignore warnings */
+        }
+
+
+        @Override
+        public void error(String domain, String key, XMLParseException e)
+                throws XNIException {
+            throw e;
+        }
+
+
+        @Override
+        public void fatalError(String domain, String key,
+                XMLParseException e) throws XNIException {
+            throw e;
+        }
+    };
+    private final XMLEntityResolver entityResolver;
+    private final int maxSize;
+    private final long maxWeight;
+    private final CMDIValidatorConfig.GrammarCachePolicy policy;
+    private final GrammarManifest manifest;
+    private final ConcurrentHashMap<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>();
+    private final FrequencySketch sketch;
+    private final ConcurrentHashMap<String, FutureTask<Grammar>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<Grammar>>();
+    /* grammars, that failed to compile, and when to try again */
+    private final ConcurrentHashMap<String, Long> failures =
+            new ConcurrentHashMap<String, Long>();
+    /* grammars currently compiled by a thread to break import cycles */
+    private final ThreadLocal<Set<String>> compiling =
+            new ThreadLocal<Set<String>>() {
+        @Override
+        protected Set<String> initialValue() {
+            return new HashSet<String>();
+        }
+    };
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong rejectionCount = new AtomicLong();
+    private final AtomicLong compileCount = new AtomicLong();
+    private final AtomicLong compileTime = new AtomicLong();
+    private final AtomicLong verifiedCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private long weight = 0;
+    private volatile Grammar[] permanent = EMPTY;
+    private volatile boolean locked = false;
+
+
+    SharedXMLGrammarPool(XMLEntityResolver entityResolver, int maxSize,
+            long maxWeight, CMDIValidatorConfig.GrammarCachePolicy policy,
+            GrammarManifest manifest) {
+        if (entityResolver == null) {
+            throw new NullPointerException("entityResolver == null");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize < 1");
+        }
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("maxWeight < 0");
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy == null");
+        }
+        this.entityResolver = entityResolver;
+        this.maxSize        = maxSize;
+        this.maxWeight      = maxWeight;
+        this.policy         = policy;
+        this.manifest       =
+                (FULL_CHECKED_FIELD != null) ? manifest : null;
+        this.sketch         = new FrequencySketch(maxSize);
+    }
+
+
+    /*
+     * Load a grammar, which will be kept in the pool forever. Needs to be
+     * called before the pool is locked.
+     */
+    void loadPermanentGrammar(String namespace, String location,
+            InputStream stream) throws XNIException, IOException {
+        final XMLSchemaLoader loader = createLoader(this, entityResolver);
+        final Grammar grammar = loader.loadGrammar(
+                new XMLInputSource(namespace, location, null, stream, null));
+        if (grammar != null) {
+            cacheGrammars(XML_SCHEMA_GRAMMAR_TYPE, new Grammar[] { grammar });
+        }
+    }
+
+
+    /*
+     * Make sure, the grammar for a schema is available in the pool. Returns
+     * true, if the grammar could be loaded.
+     */
+    boolean preload(String namespace, String location) {
+        final XSDDescription desc = new XSDDescription();
+        desc.setNamespace(namespace);
+        desc.setLocationHints(new String[] { location });
+        return retrieveGrammar(desc) != null;
+    }
+
+
+    /*
+     * Write the hashes of the schema sets, that passed full checking since
+     * the last call, to the manifest.
+     */
+    void saveManifest() {
+        if (manifest != null) {
+            manifest.save();
+        }
+    }
+
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+
+    CMDIValidator.GrammarCacheStatistics getStatistics() {
+        final int size;
+        final long w;
+        synchronized (this) {
+            size = entries.size();
+            w    = weight;
+        } // synchronized (this)
+        return new CMDIValidator.GrammarCacheStatistics(size,
+                w,
+                hitCount.get(),
+                missCount.get(),
+                evictionCount.get(),
+                rejectionCount.get(),
+                compileCount.get(),
+                compileTime.get() / 1000000L,
+                verifiedCount.get(),
+                waitCount.get(),
+                waitTime.get() / 1000000L);
+    }
+
+
+    @Override
+    public Grammar[] retrieveInitialGrammarSet(String grammarType) {
+        final Grammar[] result = permanent;
+        if (XML_SCHEMA_GRAMMAR_TYPE.equals(grammarType) &&
+                (result.length > 0)) {
+            return result.clone();
+        } else {
+            return null;
+        }
+    }
+
+
+    @Override
+    public Grammar retrieveGrammar(XMLGrammarDescription d) {
+        if ((d.getNamespace() == null) || !(d instanceof XSDDescription)) {
+            logger.trace("-> miss (invalid arguments supplied by caller)");
+            return null;
+        }
+
+        final XSDDescription desc = (XSDDescription) d;
+        Grammar result = findPermanentGrammar(desc);
+        if (result != null) {
+            return result;
+        }
+
+        final String locationHint = getLocationHint(desc);
+        if ((locationHint == null) || !locked) {
+            /*
+             * parser is just probing for the namespace or permanent grammars
+             * are still being loaded
+             */
+            return null;
+        }
+
+        final String key = makeKey(desc.getNamespace(),
+                getSystemId(desc, locationHint));
+        sketch.increment(key);
+        final Entry entry = entries.get(key);
+        if (entry != null) {
+            logger.trace("-> match: {} / {}",
+                    desc.getNamespace(), locationHint);
+            entry.lastAccess = System.nanoTime();
+            hitCount.incrementAndGet();
+            return entry.grammar;
+        }
+        final Set<String> inProgress = compiling.get();
+        if (inProgress.contains(key)) {
+            /* cyclic import, the loader will handle it */
+            return null;
+        }
+        final Long retry = failures.get(key);
+        if (retry != null) {
+            if ((System.nanoTime() - retry.longValue()) < 0) {
+                logger.trace("-> failed recently: {} / {}",
+                        desc.getNamespace(), locationHint);
+                return null;
+            }
+            failures.remove(key, retry);
+        }
+        logger.trace("-> miss: {} / {}", desc.getNamespace(), locationHint);
+        missCount.incrementAndGet();
+
+        final FutureTask<Grammar> task =
+                new FutureTask<Grammar>(new Callable<Grammar>() {
+            @Override
+            public Grammar call() throws Exception {
+                /* somebody else might just have finished compiling */
+                final Entry entry = entries.get(key);
+                if (entry != null) {
+                    return entry.grammar;
+                }
+                final Grammar grammar = compile(desc, locationHint);
+                if (grammar == null) {
+                    failures.put(key,
+                            Long.valueOf(System.nanoTime() + FAILURE_TTL));
+                }
+                return grammar;
+            }
+        });
+        final FutureTask<Grammar> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            inProgress.add(key);
+            try {
+                task.run();
+            } finally {
+                inProgress.remove(key);
+                inFlight.remove(key, task);
+            }
+            return getResult(task);
+        }
+
+        if (!inProgress.isEmpty()) {
+            /*
+             * this thread is compiling another grammar; waiting might
+             * deadlock with a cyclic import, so let the loader handle it
+             */
+            return null;
+        }
+        logger.trace("-> waiting for compilation: {} / {}",
+                desc.getNamespace(), locationHint);
+        waitCount.incrementAndGet();
+        final long start = System.nanoTime();
+        try {
+            return getResult(running);
+        } finally {
+            waitTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+
+    @Override
+    public void lockPool() {
+        locked = true;
+    }
+
+
+    @Override
+    public void unlockPool() {
+        locked = false;
+    }
+
+
+    @Override
+    public void clear() {
+        if (!locked) {
+            permanent = EMPTY;
+        }
+    }
+
+
+    @Override
+    public void cacheGrammars(String grammarType, Grammar[] grammars) {
+        cacheGrammars(grammarType, grammars, null);
+    }
+
+
+    private void cacheGrammars(String grammarType, Grammar[] grammars,
+            Compilation compilation) {
+        if (!XML_SCHEMA_GRAMMAR_TYPE.equals(grammarType) ||
+                (grammars == null) || (grammars.length == 0)) {
+            return;
+        }
+        for (Grammar grammar : grammars) {
+            final XMLGrammarDescription gd = grammar.getGrammarDescription();
+            if (findPermanentGrammar(gd) != null) {
+                continue;
+            }
+            if (!locked) {
+                addPermanentGrammar(grammar);
+            } else if (gd.getLiteralSystemId() != null) {
+                final String systemId =
+                        getSystemId(gd, gd.getLiteralSystemId());
+                final String key = makeKey(gd.getNamespace(), systemId);
+                if (!entries.containsKey(key)) {
+                    long w = DEFAULT_WEIGHT;
+                    String hash = null;
+                    if (compilation != null) {
+                        final Long size =
+                                compilation.documentSizes.get(systemId);
+                        if (size != null) {
+                            w = size.longValue() * WEIGHT_FACTOR;
+                        }
+                        hash = compilation.getHash();
+                    }
+                    admit(key, grammar, w, hash);
+                }
+            }
+        } // for
+    }
+
+
+    private Grammar compile(final XSDDescription desc,
+            final String locationHint) {
+        final long start = System.nanoTime();
+        try {
+            final String systemId = XMLEntityManager.expandSystemId(
+                    locationHint, desc.getBaseSystemId(), false);
+            final String verified =
+                    (manifest != null) ? manifest.getHash(systemId) : null;
+            Compilation compilation =
+                    new Compilation(desc, locationHint, systemId);
+            Grammar grammar = compilation.compile(verified == null);
+            if ((grammar != null) && (verified != null)) {
+                if (verified.equals(compilation.getHash())) {
+                    markFullyChecked(compilation.grammars);
+                    verifiedCount.incrementAndGet();
+                } else {
+                    logger.debug("schema {} / {} has changed since it was " +
+                            "last checked", desc.getNamespace(), locationHint);
+                    compilation =
+                            new Compilation(desc, locationHint, systemId);
+                    grammar = compilation.compile(true);
+                }
+            }
+            compileCount.incrementAndGet();
+            if ((grammar == null) || !desc.getNamespace().equals(
+                    grammar.getGrammarDescription().getNamespace())) {
+                /* let the parser deal with it */
+                return null;
+            }
+            if (compilation.fullChecking && (manifest != null) &&
+                    (compilation.getHash() != null)) {
+                /* marks the manifest dirty, it is saved when the job ends */
+                manifest.putHash(systemId, compilation.getHash());
+            }
+            cacheGrammars(XML_SCHEMA_GRAMMAR_TYPE,
+                    compilation.grammars.toArray(EMPTY), compilation);
+            logger.debug("compiled grammar {} / {} in {} ms",
+                    desc.getNamespace(), locationHint,
+                    (System.nanoTime() - start) / 1000000L);
+            return grammar;
+        } catch (IOException e) {
+            logger.debug("error compiling grammar {} / {}: {}",
+                    desc.getNamespace(), locationHint, e.getMessage());
+            return null;
+        } catch (XNIException e) {
+            logger.debug("error compiling grammar {} / {}: {}",
+                    desc.getNamespace(), locationHint, e.getMessage());
+            return null;
+        } finally {
+            compileTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+
+    private static String getLocationHint(XSDDescription desc) {
+        if (desc.getLocationHints() != null) {
+            String[] h = desc.getLocationHints();
+            if (h.length > 0) {
+                return h[0];
+            }
+        } else if (desc.getLiteralSystemId() != null) {
+            return desc.getLiteralSystemId();
+        }
+        return null;
+    }
+
+
+    private static Grammar getResult(FutureTask<Grammar> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            logger.debug("error compiling grammar", e.getCause());
+            return null;
+        }
+    }
+
+
+    private static void markFullyChecked(List<Grammar> grammars) {
+        try {
+            for (Grammar grammar : grammars) {
+                if (grammar instanceof SchemaGrammar) {
+                    SET_UNCHECKED_TYPE_NUM_METHOD.invoke(grammar,
+                            Integer.valueOf(0));
+                    FULL_CHECKED_FIELD.setBoolean(grammar, true);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            /* parser will do the checks */
+            logger.debug("error marking grammar as checked", e);
+        } catch (InvocationTargetException e) {
+            logger.debug("error marking grammar as checked", e);
+        }
+    }
+
+
+    private synchronized void admit(String key, Grammar grammar, long w,
+            String hash) {
+        if (entries.containsKey(key)) {
+            return;
+        }
+        if ((maxWeight > 0) && (w > maxWeight)) {
+            logger.debug("grammar {} exceeds cache weight ({} bytes)", key, w);
+            rejectionCount.incrementAndGet();
+            return;
+        }
+        if ((policy == CMDIValidatorConfig.GrammarCachePolicy.TINY_LFU) &&
+                isFull(w)) {
+            /*
+             * decide before anything is evicted, otherwise a rejected
+             * grammar could still cost the pool a grammar
+             */
+            final Entry victim = findVictim();
+            if ((victim != null) &&
+                    (sketch.frequency(key) <= sketch.frequency(victim.key))) {
+                logger.trace("rejected grammar: {}", key);
+                rejectionCount.incrementAndGet();
+                return;
+            }
+        }
+        while (isFull(w)) {
+            final Entry victim = findVictim();
+            if (victim == null) {
+                break;
+            }
+            logger.trace("evicted grammar: {}", victim.key);
+            entries.remove(victim.key);
+            weight -= victim.weight;
+            evictionCount.incrementAndGet();
+        }
+        logger.trace("cached grammar: {}", key);
+        entries.put(key, new Entry(key, grammar, w, hash));
+        weight += w;
+    }
+
+
+    private boolean isFull(long w) {
+        return (entries.size() >= maxSize) ||
+                ((maxWeight > 0) && ((weight + w) > maxWeight));
+    }
+
+
+    private Entry findVictim() {
+        Entry victim = null;
+        for (Entry entry : entries.values()) {
+            if ((victim == null) || (entry.lastAccess < victim.lastAccess)) {
+                victim = entry;
+            }
+        }
+        return victim;
+    }
+
+
+    private synchronized void addPermanentGrammar(Grammar grammar) {
+        final Grammar[] current = permanent;
+        final Grammar[] result = new Grammar[current.length + 1];
+        System.arraycopy(current, 0, result, 0, current.length);
+        result[current.length] = grammar;
+        logger.trace("cached permanent grammar: {}",
+                grammar.getGrammarDescription().getNamespace());
+        permanent = result;
+    }
+
+
+    private Grammar findPermanentGrammar(XMLGrammarDescription desc) {
+        for (Grammar grammar : permanent) {
+            final XMLGrammarDescription gd = grammar.getGrammarDescription();
+            if (gd.getNamespace().equals(desc.getNamespace())) {
+                return grammar;
+            }
+        }
+        return null;
+    }
+
+
+    private static XMLSchemaLoader createLoader(XMLGrammarPool pool,
+            XMLEntityResolver resolver) {
+        final XMLSchemaLoader loader = new XMLSchemaLoader(new SymbolTable());
+        loader.setParameter(GRAMMAR_POOL, pool);
+        loader.setEntityResolver(resolver);
+        loader.setErrorHandler(ERROR_HANDLER);
+        loader.setFeature(SCHEMA_FULL_CHECKING_FEATURE_ID, true);
+        loader.setFeature(HONOUR_ALL_SCHEMA_LOCATIONS_ID, true);
+        return loader;
+    }
+
+
+    /*
+     * The same relative location may refer to different schema documents,
+     * so grammars are kept by the expanded system id. The literal location
+     * is only used, if it cannot be expanded.
+     */
+    private static String getSystemId(XMLResourceIdentifier identifier,
+            String location) {
+        if (identifier.getExpandedSystemId() != null) {
+            return identifier.getExpandedSystemId();
+        }
+        try {
+            final String systemId = XMLEntityManager.expandSystemId(
+                    location, identifier.getBaseSystemId(), false);
+            return (systemId != null) ? systemId : location;
+        } catch (IOException e) {
+            return location;
+        }
+    }
+
+
+    private static String makeKey(String namespace, String location) {
+        return ((namespace != null) ? namespace : "") + '\u0000' + location;
+    }
+
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0x0F, 16));
+            sb.append(Character.forDigit(b & 0x0F, 16));
+        }
+        return sb.toString();
+    }
+
+
+    private static final class Entry {
+        private final String key;
+        private final Grammar grammar;
+        private final long weight;
+        private final String hash;
+        private volatile long lastAccess = System.nanoTime();
+
+
+        private Entry(String key, Grammar grammar, long weight, String hash) {
+            this.key     = key;
+            this.grammar = grammar;
+            this.weight  = weight;
+            this.hash    = hash;
+        }
+    }
+
+
+    /*
+     * A count-min sketch estimating, how often a grammar has been requested
+     * recently. All counters are halved periodically, so the sketch adapts
+     * to a changing mix of profiles.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {
+            0x97cb3127, 0xb3f4c5d1, 0x5bd1e995, 0x27d4eb2f
+        };
+        private final AtomicIntegerArray counters;
+        private final int mask;
+        private final int sampleSize;
+        private final AtomicLong additions = new AtomicLong();
+
+
+        private FrequencySketch(int maxSize) {
+            int width = 64;
+            while (width < (maxSize * 8)) {
+                width <<= 1;
+            }
+            this.counters   = new AtomicIntegerArray(width * DEPTH);
+            this.mask       = width - 1;
+            this.sampleSize = width * 10;
+        }
+
+
+        private void increment(String key) {
+            final int hash = key.hashCode();
+            for (int i = 0; i < DEPTH; i++) {
+                counters.incrementAndGet(index(hash, i));
+            }
+            if (additions.incrementAndGet() >= sampleSize) {
+                reset();
+            }
+        }
+
+
+        private int frequency(String key) {
+            final int hash = key.hashCode();
+            int result = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                result = Math.min(result, counters.get(index(hash, i)));
+            }
+            return result;
+        }
+
+
+        private synchronized void reset() {
+            if (additions.get() < sampleSize) {
+                return;
+            }
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, counters.get(i) >>> 1);
+            }
+            additions.set(0);
+        }
+
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= (h >>> 16);
+            return (row * (mask + 1)) + (h & mask);
+        }
+    }
+
+
+    /*
+     * The state of compiling one grammar. All schema documents are read
+     * through it to record their size and content hash. Grammars are looked
+     * up in the shared pool, but newly compiled grammars are just collected
+     * and only admitted to the pool after their weight is known.
+     */
+    private final class Compilation
+            implements XMLEntityResolver, XMLGrammarPool {
+        private final XSDDescription desc;
+        private final String locationHint;
+        private final String systemId;
+        private final Map<String, Long> documentSizes =
+                new HashMap<String, Long>();
+        private final List<String> digests = new ArrayList<String>();
+        private final List<Grammar> grammars = new ArrayList<Grammar>();
+        private boolean fullChecking;
+        private boolean hashable = true;
+        private String hash;
+
+
+        private Compilation(XSDDescription desc, String locationHint,
+                String systemId) {
+            this.desc         = desc;
+            this.locationHint = locationHint;
+            this.systemId     = systemId;
+        }
+
+
+        private Grammar compile(boolean fullChecking) throws IOException {
+            this.fullChecking = fullChecking;
+            final XMLInputSource source = resolveEntity(
+                    new XMLResourceIdentifierImpl(null, locationHint,
+                            desc.getBaseSystemId(), systemId,
+                            desc.getNamespace()));
+            if (source == null) {
+                return null;
+            }
+            source.setSystemId(locationHint);
+            source.setBaseSystemId(desc.getBaseSystemId());
+            final XMLSchemaLoader loader = createLoader(this, this);
+            loader.setFeature(SCHEMA_FULL_CHECKING_FEATURE_ID, fullChecking);
+            return loader.loadGrammar(source);
+        }
+
+
+        /*
+         * Returns the content hash of all documents of the schema set or
+         * null, if it cannot be determined.
+         */
+        private String getHash() {
+            if ((hash == null) && hashable) {
+                final MessageDigest digest = newDigest();
+                if (digest == null) {
+                    hashable = false;
+                    return null;
+                }
+                /* independent of the order documents have been read */
+                Collections.sort(digests);
+                for (String s : digests) {
+                    digest.update(s.getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) '\n');
+                }
+                hash = toHex(digest.digest());
+            }
+            return hash;
+        }
+
+
+        @Override
+        public XMLInputSource resolveEntity(
+                final XMLResourceIdentifier identifier)
+                throws XNIException, IOException {
+            final XMLInputSource source =
+                    entityResolver.resolveEntity(identifier);
+            if ((source == null) || (source.getByteStream() == null)) {
+                hashable = false;
+                return source;
+            }
+            final String systemId = (identifier.getLiteralSystemId() != null)
+                    ? getSystemId(identifier, identifier.getLiteralSystemId())
+                    : null;
+            final MessageDigest digest = newDigest();
+            source.setByteStream(new FilterInputStream(source.getByteStream()) {
+                private long count = 0;
+
+
+                @Override
+                public int read() throws IOException {
+                    final int c = super.read();
+                    if (c != -1) {
+                        count++;
+                        if (digest != null) {
+                            digest.update((byte) c);
+                        }
+                    }
+                    return c;
+                }
+
+
+                @Override
+                public int read(byte[] b, int off, int len)
+                        throws IOException {
+                    final int n = super.read(b, off, len);
+                    if (n > 0) {
+                        count += n;
+                        if (digest != null) {
+                            digest.update(b, off, n);
+                        }
+                    }
+                    return n;
+                }
+
+
+                @Override
+                public void close() throws IOException {
+                    if (systemId != null) {
+                        documentSizes.put(systemId, Long.valueOf(count));
+                    }
+                    if (digest != null) {
+                        digests.add(systemId + "=" + toHex(digest.digest()));
+                    } else {
+                        hashable = false;
+                    }
+                    super.close();
+                }
+            });
+            return source;
+        }
+
+
+        @Override
+        public Grammar[] retrieveInitialGrammarSet(String grammarType) {
+            return SharedXMLGrammarPool.this
+                    .retrieveInitialGrammarSet(grammarType);
+        }
+
+
+        @Override
+        public Grammar retrieveGrammar(XMLGrammarDescription d) {
+            final Grammar grammar = SharedXMLGrammarPool.this.retrieveGrammar(d);
+            if ((grammar != null) && (findPermanentGrammar(d) == null)) {
+                /* the schema set depends on a grammar from the pool */
+                final XMLGrammarDescription gd =
+                        grammar.getGrammarDescription();
+                final Entry entry = entries.get(makeKey(gd.getNamespace(),
+                        getSystemId(gd, gd.getLiteralSystemId())));
+                if ((entry != null) && (entry.hash != null)) {
+                    digests.add(entry.key + "=" + entry.hash);
+                } else {
+                    hashable = false;
+                }
+            }
+            return grammar;
+        }
+
+
+        @Override
+        public void cacheGrammars(String grammarType, Grammar[] newGrammars) {
+            if (newGrammars != null) {
+                for (Grammar grammar : newGrammars) {
+                    grammars.add(grammar);
+                }
+            }
+        }
+
+
+        @Override
+        public void lockPool() {
+        }
+
+
+        @Override
+        public void unlockPool() {
+        }
+
+
+        @Override
+        public void clear() {
+        }
+    }
+
+} // class SharedXMLGrammarPool
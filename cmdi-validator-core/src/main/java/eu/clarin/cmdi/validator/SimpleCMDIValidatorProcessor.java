@@ -19,7 +19,7 @@ package eu.clarin.cmdi.validator;
 public class SimpleCMDIValidatorProcessor implements CMDIValidatorProcessor {
 
     @Override
-    public void process(final CMDIValidator validator)
+    public CMDIValidatorJob process(final CMDIValidator validator)
             throws CMDIValidatorException {
         if (validator == null) {
             throw new NullPointerException("validator == null");
@@ -30,6 +30,7 @@ public class SimpleCMDIValidatorProcessor implements CMDIValidatorProcessor {
                 break;
             }
         }
+        return validator.getJob();
     }
 
 } // class SimpleCMDIValidatorProcessor
@@ -17,7 +17,10 @@
 package eu.clarin.cmdi.validator;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -28,16 +31,93 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
-public class ThreadedCMDIValidatorProcessor implements CMDIValidatorProcessor {
+public class ThreadedCMDIValidatorProcessor implements
+        ManagedCMDIValidatorProcessor {
+    public static final class JobStatistics {
+        private final CMDIValidator validator;
+        private final int priority;
+        private final int weight;
+        private final long scheduledCount;
+        private final int activeThreadCount;
+        private final long filesProcessedCount;
+        private final long waitTime;
+        private final long elapsedTime;
+
+        private JobStatistics(CMDIValidator validator,
+                int priority,
+                int weight,
+                long scheduledCount,
+                int activeThreadCount,
+                long filesProcessedCount,
+                long waitTime,
+                long elapsedTime) {
+            this.validator           = validator;
+            this.priority            = priority;
+            this.weight              = weight;
+            this.scheduledCount      = scheduledCount;
+            this.activeThreadCount   = activeThreadCount;
+            this.filesProcessedCount = filesProcessedCount;
+            this.waitTime            = waitTime;
+            this.elapsedTime         = elapsedTime;
+        }
+
+
+        public CMDIValidator getValidator() {
+            return validator;
+        }
+
+
+        public int getPriority() {
+            return priority;
+        }
+
+
+        public int getWeight() {
+            return weight;
+        }
+
+
+        public long getScheduledCount() {
+            return scheduledCount;
+        }
+
+
+        public int getActiveThreadCount() {
+            return activeThreadCount;
+        }
+
+
+        public long getFilesProcessedCount() {
+            return filesProcessedCount;
+        }
+
+
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+    }
+    public static final int DEFAULT_PRIORITY = 0;
+    public static final int DEFAULT_WEIGHT   = 1;
     private static final Logger logger =
             LoggerFactory.getLogger(ThreadedCMDIValidatorProcessor.class);
+    private static final long SAMPLE_INTERVAL = 1000;
+    private static final int SAMPLES_PER_WINDOW = 3;
+    private static final double SIGNIFICANT_CHANGE = 0.05;
     private final int threads;
-    private final List<CMDIValidator> validators =
-            new ArrayList<CMDIValidator>();
+    private final int minThreads;
+    /* jobs, ordered by priority (highest first) */
+    private final List<Job> jobs = new ArrayList<Job>();
     private int idx = 0;
     private boolean running = false;
+    private volatile int activeThreads;
     private ThreadGroup workers;
     private ExecutorService executor;
+    private Thread controller;
 
 
     public ThreadedCMDIValidatorProcessor() {
@@ -49,10 +129,34 @@ public class ThreadedCMDIValidatorProcessor implements CMDIValidatorProcessor {
         if (threads < 1) {
             throw new IllegalArgumentException("threads < 1");
         }
-        this.threads = threads;
+        this.threads    = threads;
+        this.minThreads = threads;
     }
 
 
+    /*
+     * Create a processor, that adapts the number of active worker threads
+     * between minThreads and maxThreads to the observed throughput.
+     */
+    public ThreadedCMDIValidatorProcessor(final int minThreads,
+            final int maxThreads) {
+        if (minThreads < 1) {
+            throw new IllegalArgumentException("minThreads < 1");
+        }
+        if (maxThreads < minThreads) {
+            throw new IllegalArgumentException("maxThreads < minThreads");
+        }
+        this.threads    = maxThreads;
+        this.minThreads = minThreads;
+    }
+
+
+    public int getActiveThreadCount() {
+        return activeThreads;
+    }
+
+
+    @Override
     public synchronized void start() {
         if (running) {
             throw new IllegalStateException("engine already started");
@@ -69,49 +173,205 @@ public class ThreadedCMDIValidatorProcessor implements CMDIValidatorProcessor {
         final CountDownLatch goLatch = new CountDownLatch(1);
         executor = Executors.newFixedThreadPool(threads, threadFactory);
         for (int i = 0; i < threads; i++) {
-            final Worker worker = new Worker(goLatch);
+            final Worker worker = new Worker(i, goLatch);
             executor.submit(worker);
         }
+        if (minThreads < threads) {
+            /* start in the middle and let the controller find its way */
+            activeThreads = (minThreads + threads) / 2;
+            controller = new Thread(workers, new Controller(),
+                    "thread-controller");
+            controller.setDaemon(true);
+            controller.start();
+        } else {
+            activeThreads = threads;
+        }
         goLatch.countDown();
         running = true;
     }
 
 
+    @Override
     public synchronized void shutdown() {
         logger.debug("shutdown validation processor");
+        if (controller != null) {
+            controller.interrupt();
+        }
         executor.shutdownNow();
         try {
             executor.awaitTermination(5000, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             /* IGNORE */
         }
+
+        /* unfinished jobs would never be finished otherwise */
+        final List<Job> unfinished;
+        synchronized (jobs) {
+            unfinished = new ArrayList<Job>(jobs);
+            jobs.clear();
+            idx = 0;
+        } // synchronized (jobs)
+        for (Job job : unfinished) {
+            try {
+                job.validator.shutdownJob();
+            } catch (CMDIValidatorException e) {
+                logger.error("error finishing validator: {}",
+                        e.getMessage(), e);
+            }
+        }
     }
 
 
     @Override
-    public void process(final CMDIValidator validator)
+    public CMDIValidatorJob process(final CMDIValidator validator)
+            throws CMDIValidatorException {
+        return process(validator, DEFAULT_PRIORITY, DEFAULT_WEIGHT);
+    }
+
+
+    /*
+     * Jobs with a higher priority are always served first. Jobs with the
+     * same priority share the worker threads according to their weight.
+     * Priorities are strict: as long as a job with a higher priority has
+     * files left, jobs with a lower priority get no worker thread at all,
+     * i.e. they starve.
+     */
+    public CMDIValidatorJob process(final CMDIValidator validator,
+            final int priority, final int weight)
             throws CMDIValidatorException {
         if (validator == null) {
             throw new NullPointerException("validator == null");
         }
-        synchronized (validators) {
-            if (validators.contains(validator)) {
-                throw new CMDIValidatorException("already processing this validator");
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight < 1");
+        }
+        synchronized (jobs) {
+            for (Job job : jobs) {
+                if (job.validator == validator) {
+                    throw new CMDIValidatorException("already processing this validator");
+                }
             }
 
-            /* enqueue work ... */
-            validators.add(validator);
+            /* enqueue work behind all jobs with same or higher priority ... */
+            int pos = 0;
+            while ((pos < jobs.size()) && (jobs.get(pos).priority >= priority)) {
+                pos++;
+            }
+            jobs.add(pos, new Job(validator, priority, weight));
+            /* keep the round robin cursor on the same job */
+            if (pos <= idx) {
+                idx++;
+            }
 
             /* ... and let the waiting herd stampede. */
-            validators.notifyAll();
-        } // synchronized (validators)
+            jobs.notifyAll();
+        } // synchronized (jobs)
+        return validator.getJob();
+    }
+
+
+    public List<JobStatistics> getJobStatistics() {
+        final long now = System.nanoTime();
+        synchronized (jobs) {
+            final List<JobStatistics> result =
+                    new ArrayList<JobStatistics>(jobs.size());
+            for (Job job : jobs) {
+                result.add(new JobStatistics(job.validator,
+                        job.priority,
+                        job.weight,
+                        job.scheduledCount,
+                        job.activeThreads,
+                        job.validator.getStatistics().getFilesProcessedCount(),
+                        TimeUnit.NANOSECONDS.toMillis(
+                                ((job.firstScheduled != -1)
+                                        ? job.firstScheduled
+                                        : now) - job.submitted),
+                        TimeUnit.NANOSECONDS.toMillis(now - job.submitted)));
+            }
+            return result;
+        } // synchronized (jobs)
+    }
+
+
+    private void setActiveThreads(int count) {
+        synchronized (jobs) {
+            activeThreads = count;
+            /* wake up any parked workers */
+            jobs.notifyAll();
+        } // synchronized (jobs)
+    }
+
+
+    /*
+     * Deficit round robin among the jobs with the highest priority: a job
+     * is credited with its weight, when it's turn comes, and may be picked
+     * as long as it has credit left. Must be called with lock on jobs held.
+     */
+    private Job nextJob() {
+        if (jobs.isEmpty()) {
+            return null;
+        }
+        final int priority = jobs.get(0).priority;
+        int count = 1;
+        while ((count < jobs.size()) && (jobs.get(count).priority == priority)) {
+            count++;
+        }
+        Job job = ((idx >= 0) && (idx < count)) ? jobs.get(idx) : null;
+        if ((job == null) || (job.deficit < 1)) {
+            idx = ((idx >= 0) && ((idx + 1) < count)) ? (idx + 1) : 0;
+            job = jobs.get(idx);
+            job.deficit += job.weight;
+        }
+        job.deficit--;
+        job.scheduledCount++;
+        if (job.firstScheduled == -1) {
+            job.firstScheduled = System.nanoTime();
+        }
+        return job;
+    }
+
+
+    /*
+     * Remove a finished job. If the job was in turn, the cursor is moved
+     * back, so the next job will get its turn and credit. Must be called
+     * with lock on jobs held.
+     */
+    private void removeJob(Job job) {
+        final int pos = jobs.indexOf(job);
+        if (pos != -1) {
+            jobs.remove(pos);
+            if (pos <= idx) {
+                idx--;
+            }
+        }
+    }
+
+
+    private static final class Job {
+        private final CMDIValidator validator;
+        private final int priority;
+        private final int weight;
+        private final long submitted = System.nanoTime();
+        private long firstScheduled = -1;
+        private long scheduledCount;
+        private int deficit;
+        private int activeThreads;
+
+
+        private Job(CMDIValidator validator, int priority, int weight) {
+            this.validator = validator;
+            this.priority  = priority;
+            this.weight    = weight;
+        }
     }
 
 
     private class Worker implements Runnable {
+        private final int id;
         private final CountDownLatch goLatch;
 
-        private Worker(final CountDownLatch goLatch) {
+        private Worker(final int id, final CountDownLatch goLatch) {
+            this.id      = id;
             this.goLatch = goLatch;
         }
 
@@ -124,37 +384,41 @@ public class ThreadedCMDIValidatorProcessor implements CMDIValidatorProcessor {
 
                 // loop for work ...
                 boolean done = false;
-                CMDIValidator validator = null;
+                Job job = null;
                 for (;;) {
                     if (Thread.currentThread().isInterrupted()) {
                         break;
                     }
-                    synchronized (validators) {
-                        if (done && (validator != null)) {
-                            validators.remove(validator);
-                        }
-                        if (!validators.isEmpty()) {
-                            if (idx >= validators.size()) {
-                                idx = 0;
+                    synchronized (jobs) {
+                        if (job != null) {
+                            job.activeThreads--;
+                            if (done) {
+                                removeJob(job);
                             }
-                            validator = validators.get(idx++);
+                        }
+                        if (id >= activeThreads) {
+                            /* parked by the controller */
+                            job = null;
+                            jobs.wait();
                         } else {
-                            validator = null;
-                            validators.wait();
+                            job = nextJob();
+                            if (job != null) {
+                                job.activeThreads++;
+                            } else {
+                                jobs.wait();
+                            }
                         }
-                    } // synchronized (validators)
+                    } // synchronized (jobs)
 
                     // got something to do ... proceed
-                    if (validator != null) {
+                    done = false;
+                    if (job != null) {
                         try {
-                            done = validator.processOneFile();
+                            done = job.validator.processOneFile();
                         } catch (CMDIValidatorException e) {
                             logger.error("error processing validator: {}",
                                     e.getMessage(), e);
-                            synchronized (validators) {
-                                validators.remove(validator);
-                                validator = null;
-                            } // synchronized (validators)
+                            done = true;
                         }
                     }
                 } // for
@@ -166,4 +430,136 @@ public class ThreadedCMDIValidatorProcessor implements CMDIValidatorProcessor {
         }
     }
 
+
+    /*
+     * Simple hill climbing: measure the throughput over a sliding window of
+     * the most recent samples and keep on adding (or removing) worker
+     * threads as long as throughput improves. If it drops, reverse
+     * direction. If it does not change significantly, hold the current
+     * number of threads until it does. The throughput is evaluated after
+     * every sample, but after an adjustment only once the window has been
+     * refilled with samples taken with the new number of threads.
+     */
+    private class Controller implements Runnable {
+        private final Map<CMDIValidator, long[]> last =
+                new HashMap<CMDIValidator, long[]>();
+        private int direction = 1;
+        private double lastScore = -1;
+
+
+        @Override
+        public void run() {
+            try {
+                /* ring buffer of the most recent samples */
+                final long[] files = new long[SAMPLES_PER_WINDOW];
+                final long[] bytes = new long[SAMPLES_PER_WINDOW];
+                final long[] times = new long[SAMPLES_PER_WINDOW];
+                int next = 0;
+                int samples = 0;
+                long sampleStart = System.nanoTime();
+                for (;;) {
+                    Thread.sleep(SAMPLE_INTERVAL);
+                    final long[] delta = sample();
+                    final long now = System.nanoTime();
+                    files[next] = delta[0];
+                    bytes[next] = delta[1];
+                    times[next] = now - sampleStart;
+                    sampleStart = now;
+                    next = (next + 1) % SAMPLES_PER_WINDOW;
+                    samples = Math.min(samples + 1, SAMPLES_PER_WINDOW);
+                    if (samples < SAMPLES_PER_WINDOW) {
+                        continue;
+                    }
+
+                    long windowFiles = 0;
+                    long windowBytes = 0;
+                    long windowTime = 0;
+                    for (int i = 0; i < SAMPLES_PER_WINDOW; i++) {
+                        windowFiles += files[i];
+                        windowBytes += bytes[i];
+                        windowTime  += times[i];
+                    }
+                    final double seconds = windowTime / 1e9;
+                    final double fps = windowFiles / seconds;
+                    final double bps = windowBytes / seconds;
+                    if (adjust(fps, bps)) {
+                        /* older samples were taken with other thread count */
+                        samples = 0;
+                    }
+                } // for
+            } catch (InterruptedException e) {
+                /* processor is shut down */
+            } catch (Throwable e) {
+                logger.error("unexpected exception in controller thread", e);
+            }
+        }
+
+
+        private long[] sample() {
+            final List<CMDIValidator> current = new ArrayList<CMDIValidator>();
+            synchronized (jobs) {
+                for (Job job : jobs) {
+                    current.add(job.validator);
+                }
+            } // synchronized (jobs)
+            final long[] delta = new long[2];
+            for (CMDIValidator validator : current) {
+                final CMDIValidator.Statistics stats =
+                        validator.getStatistics();
+                long[] prev = last.get(validator);
+                if (prev == null) {
+                    prev = new long[2];
+                    last.put(validator, prev);
+                }
+                delta[0] += stats.getFilesProcessedCount() - prev[0];
+                delta[1] += stats.getBytesProcessedCount() - prev[1];
+                prev[0] = stats.getFilesProcessedCount();
+                prev[1] = stats.getBytesProcessedCount();
+            }
+            last.keySet().retainAll(current);
+            return delta;
+        }
+
+
+        /* returns true, if the number of active threads was changed */
+        private boolean adjust(double fps, double bps) {
+            /* prefer bytes/second, as it is less sensitive to file sizes */
+            final double score = (bps > 0) ? bps : fps;
+            if (score <= 0) {
+                /* idle, nothing to measure */
+                lastScore = -1;
+                return false;
+            }
+
+            if (lastScore > 0) {
+                if (score < (lastScore * (1.0 - SIGNIFICANT_CHANGE))) {
+                    direction = -direction;
+                } else if (score <= (lastScore * (1.0 + SIGNIFICANT_CHANGE))) {
+                    /*
+                     * plateau: keep the count and the reference score, so
+                     * a slow drift will eventually be noticed as well
+                     */
+                    return false;
+                }
+            }
+            lastScore = score;
+
+            final int current = activeThreads;
+            final int count =
+                    Math.max(minThreads, Math.min(threads, current + direction));
+            if (count != current) {
+                logger.debug("adjusting worker threads {} -> {} " +
+                        "({} files/second, {} bytes/second)", current, count,
+                        String.format(Locale.ENGLISH, "%.1f", fps),
+                        String.format(Locale.ENGLISH, "%.0f", bps));
+                setActiveThreads(count);
+                return true;
+            } else {
+                /* hit a bound, so try the other direction next time */
+                direction = -direction;
+                return false;
+            }
+        }
+    }
+
 } // class ThreadedCMDIValidatorProcessor
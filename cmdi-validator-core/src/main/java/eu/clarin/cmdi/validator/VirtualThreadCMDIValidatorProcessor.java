@@ -0,0 +1,300 @@
+/**
+ * This software is copyright (c) 2014-2019 by
+ *  - Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ * This is free software. You can redistribute it
+ * and/or modify it under the terms described in
+ * the GNU General Public License v3 of which you
+ * should have received a copy. Otherwise you can download
+ * it from
+ *
+ *   http://www.gnu.org/licenses/gpl-3.0.txt
+ *
+ * @copyright Institut fuer Deutsche Sprache (http://www.ids-mannheim.de)
+ *
+ * @license http://www.gnu.org/licenses/gpl-3.0.txt
+ *  GNU General Public License v3
+ */
+package eu.clarin.cmdi.validator;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/*
+ * Validates every file in a task of its own. If the JVM supports virtual
+ * threads, every task runs on a virtual thread, otherwise on a pooled
+ * platform thread. Parsing and Schematron validation are CPU bound and
+ * limited by a number of permits, extensions (like checking handles) are
+ * not, so lots of files may wait for network I/O at the same time.
+ */
+public class VirtualThreadCMDIValidatorProcessor implements
+        ManagedCMDIValidatorProcessor {
+    private static final Logger logger =
+            LoggerFactory.getLogger(VirtualThreadCMDIValidatorProcessor.class);
+    private static final int DEFAULT_MAX_CONCURRENT_FILES = 1024;
+    /* concurrent files per cpu permit, if only platform threads are used */
+    private static final int PLATFORM_THREADS_PER_PERMIT = 4;
+    private static final int BATCH_SIZE = 64;
+    private final int cpuPermits;
+    private final int maxConcurrentFiles;
+    private final Set<CMDIValidator> validators =
+            Collections.newSetFromMap(
+                    new ConcurrentHashMap<CMDIValidator, Boolean>());
+    private Semaphore permits;
+    private Semaphore inFlight;
+    private ExecutorService executor;
+
+
+    public VirtualThreadCMDIValidatorProcessor() {
+        this(Runtime.getRuntime().availableProcessors(),
+                DEFAULT_MAX_CONCURRENT_FILES);
+    }
+
+
+    public VirtualThreadCMDIValidatorProcessor(final int cpuPermits) {
+        this(cpuPermits, DEFAULT_MAX_CONCURRENT_FILES);
+    }
+
+
+    public VirtualThreadCMDIValidatorProcessor(final int cpuPermits,
+            final int maxConcurrentFiles) {
+        if (cpuPermits < 1) {
+            throw new IllegalArgumentException("cpuPermits < 1");
+        }
+        if (maxConcurrentFiles < cpuPermits) {
+            throw new IllegalArgumentException(
+                    "maxConcurrentFiles < cpuPermits");
+        }
+        /* upper bound of parties per phaser */
+        if (maxConcurrentFiles > 65534) {
+            throw new IllegalArgumentException("maxConcurrentFiles > 65534");
+        }
+        this.cpuPermits         = cpuPermits;
+        this.maxConcurrentFiles = maxConcurrentFiles;
+    }
+
+
+    @Override
+    public synchronized void start() {
+        if (executor != null) {
+            throw new IllegalStateException("engine already started");
+        }
+        permits  = new Semaphore(cpuPermits, true);
+        executor = createVirtualThreadExecutor();
+        if (executor != null) {
+            logger.debug("using virtual threads (cpu permits = {}, " +
+                    "max concurrent files = {})",
+                    cpuPermits, maxConcurrentFiles);
+            inFlight = new Semaphore(maxConcurrentFiles);
+        } else {
+            /*
+             * every file occupies a platform thread, so do not start
+             * more of them, than are needed to keep the cpu permits busy
+             * while others wait for extensions
+             */
+            final int maxFiles = Math.min(maxConcurrentFiles,
+                    cpuPermits * PLATFORM_THREADS_PER_PERMIT);
+            logger.warn("virtual threads are not available, falling back " +
+                    "to platform threads (cpu permits = {}, " +
+                    "max concurrent files = {})",
+                    cpuPermits, maxFiles);
+            inFlight = new Semaphore(maxFiles);
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger id = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable target) {
+                    final Thread thread = new Thread(target,
+                            String.format("worker-%02x",
+                                    id.getAndIncrement()));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+
+    @Override
+    public synchronized void shutdown() {
+        logger.debug("shutdown validation processor");
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(5000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                /* IGNORE */
+            }
+        }
+
+        /* unfinished jobs would never be finished otherwise */
+        for (CMDIValidator validator : validators) {
+            try {
+                validator.shutdownJob();
+            } catch (CMDIValidatorException e) {
+                logger.error("error finishing validator: {}",
+                        e.getMessage(), e);
+            }
+        }
+        validators.clear();
+    }
+
+
+    @Override
+    public CMDIValidatorJob process(final CMDIValidator validator)
+            throws CMDIValidatorException {
+        if (validator == null) {
+            throw new NullPointerException("validator == null");
+        }
+        final ExecutorService executor;
+        synchronized (this) {
+            if (this.executor == null) {
+                throw new IllegalStateException("engine not started");
+            }
+            executor = this.executor;
+        } // synchronized (this)
+        if (!validators.add(validator)) {
+            throw new CMDIValidatorException("already processing this validator");
+        }
+        try {
+            executor.execute(new JobTask(validator, executor));
+        } catch (RejectedExecutionException e) {
+            validators.remove(validator);
+            throw new CMDIValidatorException("engine was shut down", e);
+        }
+        return validator.getJob();
+    }
+
+
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            final Method method = Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            /* e.g. preview features not enabled */
+            logger.debug("cannot create virtual thread executor", e);
+            return null;
+        }
+    }
+
+
+    private final class JobTask implements Runnable {
+        private final CMDIValidator validator;
+        private final ExecutorService executor;
+
+
+        private JobTask(CMDIValidator validator, ExecutorService executor) {
+            this.validator = validator;
+            this.executor  = executor;
+        }
+
+
+        @Override
+        public void run() {
+            /*
+             * this task itself is registered with the phaser and
+             * arrives last, after all files have been submitted
+             */
+            final Phaser pending = new Phaser(1);
+            final FileEntry[] batch = new FileEntry[BATCH_SIZE];
+            try {
+                if (validator.startJob()) {
+                    while (validator.isRunning()) {
+                        final int count = validator.nextFiles(batch);
+                        if (count == 0) {
+                            break;
+                        }
+                        for (int i = 0; i < count; i++) {
+                            inFlight.acquire();
+                            pending.register();
+                            try {
+                                executor.execute(
+                                        new FileTask(validator, batch[i],
+                                                pending));
+                            } catch (RejectedExecutionException e) {
+                                pending.arriveAndDeregister();
+                                inFlight.release();
+                                throw e;
+                            }
+                            batch[i] = null;
+                        }
+                    }
+                }
+                pending.arriveAndAwaitAdvance();
+            } catch (InterruptedException e) {
+                logger.debug("job was interrupted");
+                validator.abort();
+            } catch (RejectedExecutionException e) {
+                logger.debug("job was rejected");
+                validator.abort();
+            } catch (CMDIValidatorException e) {
+                logger.error("error processing validator: {}",
+                        e.getMessage(), e);
+            } finally {
+                /* files claimed, but never handed to a task */
+                for (int i = 0; i < batch.length; i++) {
+                    if (batch[i] != null) {
+                        batch[i].release(true);
+                        batch[i] = null;
+                    }
+                }
+                validators.remove(validator);
+                try {
+                    validator.finishJob();
+                } catch (CMDIValidatorException e) {
+                    logger.error("error finishing validator: {}",
+                            e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+
+    private final class FileTask implements Runnable {
+        private final CMDIValidator validator;
+        private final FileEntry file;
+        private final Phaser pending;
+
+
+        private FileTask(CMDIValidator validator, FileEntry file,
+                Phaser pending) {
+            this.validator = validator;
+            this.file      = file;
+            this.pending   = pending;
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                if (validator.isRunning()) {
+                    validator.validateFile(file, permits);
+                } else {
+                    file.release(true);
+                }
+            } catch (CMDIValidatorException e) {
+                logger.error("error processing validator: {}",
+                        e.getMessage(), e);
+            } finally {
+                inFlight.release();
+                pending.arriveAndDeregister();
+            }
+        }
+    }
+
+} // class VirtualThreadCMDIValidatorProcessor
@@ -21,7 +21,11 @@ import humanize.Humanize;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -44,10 +48,16 @@ import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.clarin.cmdi.validator.ForkJoinCMDIValidatorProcessor;
+import eu.clarin.cmdi.validator.ManagedCMDIValidatorProcessor;
+import eu.clarin.cmdi.validator.PipelineCMDIValidatorProcessor;
+import eu.clarin.cmdi.validator.SchemaAffinityCMDIValidatorProcessor;
 import eu.clarin.cmdi.validator.ThreadedCMDIValidatorProcessor;
+import eu.clarin.cmdi.validator.VirtualThreadCMDIValidatorProcessor;
 import eu.clarin.cmdi.validator.CMDIValidator;
 import eu.clarin.cmdi.validator.CMDIValidatorConfig;
 import eu.clarin.cmdi.validator.CMDIValidatorException;
+import eu.clarin.cmdi.validator.CMDIValidatorJob;
 import eu.clarin.cmdi.validator.CMDIValidatorInitException;
 import eu.clarin.cmdi.validator.CMDIValidationHandlerAdapter;
 import eu.clarin.cmdi.validator.CMDIValidationReport;
@@ -62,16 +72,41 @@ public class CMDIValidatorTool {
     private static final long DEFAULT_MAX_FILE_SIZE        = 10 * 1024 * 1024; 
     private static final long DEFAULT_PROGRESS_INTERVAL    = 15000;
     private static final Locale LOCALE                     = Locale.ENGLISH;
+    private static final String PROCESSOR_THREADED         = "threaded";
+    private static final String PROCESSOR_FORKJOIN         = "forkjoin";
+    private static final String PROCESSOR_VIRTUAL          = "virtual";
+    private static final String PROCESSOR_PIPELINE         = "pipeline";
+    private static final String PROCESSOR_AFFINITY         = "affinity";
+    private static final String POLICY_LRU                 = "lru";
+    private static final String POLICY_TINY_LFU            = "tinylfu";
     private static final String OPT_DEBUG                  = "d";
     private static final String OPT_DEBUG_TRACE            = "D";
     private static final String OPT_QUIET                  = "q";
     private static final String OPT_VERBOSE                = "v";
     private static final String OPT_THREAD_COUNT           = "t";
     private static final String OPT_NO_THREADS             = "T";
+    private static final String OPT_ADAPTIVE_THREADS       = "a";
+    private static final String OPT_PROCESSOR              = "m";
+    private static final String OPT_BATCH_SIZE             = "b";
+    private static final String OPT_ENUMERATOR_QUEUE       = "e";
+    private static final String OPT_TRAVERSAL_THREADS      = "r";
+    private static final String OPT_LARGEST_FIRST          = "w";
+    private static final String OPT_PREFETCH               = "k";
+    private static final String OPT_REPORT_QUEUE           = "Q";
+    private static final String OPT_GRAMMAR_CACHE_SIZE     = "z";
+    private static final String OPT_GRAMMAR_CACHE_WEIGHT   = "Z";
+    private static final String OPT_GRAMMAR_CACHE_POLICY   = "y";
+    private static final String OPT_STAGE_THREADS          = "g";
     private static final String OPT_NO_ESTIMATE            = "E";
+    private static final String OPT_WARM_UP                = "W";
+    private static final String OPT_TIME_LIMIT             = "x";
+    private static final String OPT_FILE_TIME_LIMIT        = "X";
     private static final String OPT_MAX_FILESIZE           = "l";
     private static final String OPT_NO_MAX_FILESIZE        = "L";
+    private static final String OPT_MEMORY_BUDGET          = "M";
     private static final String OPT_SCHEMA_CACHE_DIR       = "c";
+    private static final String OPT_NO_SCHEMA_MANIFEST     = "n";
+    private static final String OPT_NO_ERROR_CAUSES        = "C";
     private static final String OPT_NO_SCHEMATRON          = "S";
     private static final String OPT_SCHEMATRON_FILE        = "s";
     private static final String OPT_FILENAME_FILTER        = "F";
@@ -90,10 +125,28 @@ public class CMDIValidatorTool {
         boolean quiet               = false;
         boolean verbose             = false;
         int threadCount             = Runtime.getRuntime().availableProcessors();
+        int minThreadCount          = -1;
+        String processorType        = PROCESSOR_THREADED;
+        int batchSize               = 1;
+        int enumeratorQueueSize     = 0;
+        int traversalThreads        = 1;
+        int largestFirstWindow      = 0;
+        int prefetchCount           = 0;
+        int reportQueueSize         = 0;
+        int grammarCacheSize        = 0;
+        long grammarCacheWeight     = 0;
+        CMDIValidatorConfig.GrammarCachePolicy grammarCachePolicy = null;
+        int[] stageThreads          = null;
         boolean estimate            = true;
+        boolean warmUp              = false;
+        long timeLimit              = -1;
+        long fileTimeLimit          = -1;
         long maxFileSize            = DEFAULT_MAX_FILE_SIZE;
+        long memoryBudget           = 0;
         long progressInterval       = DEFAULT_PROGRESS_INTERVAL;
         File schemaCacheDir         = null;
+        boolean disableManifest     = false;
+        boolean disableErrorCauses  = false;
         boolean disableSchematron   = false;
         File schematronFile         = null;
         FileFilter fileFilter       = null;
@@ -170,9 +223,228 @@ public class CMDIValidatorTool {
             if (line.hasOption(OPT_NO_THREADS)) {
                 threadCount = 1;
             }
+            if (line.hasOption(OPT_ADAPTIVE_THREADS)) {
+                final String[] values =
+                        line.getOptionValue(OPT_ADAPTIVE_THREADS).split(",");
+                if (values.length != 2) {
+                    throw new ParseException("invalid argument for -" +
+                            OPT_ADAPTIVE_THREADS + ": expected MIN,MAX");
+                }
+                try {
+                    minThreadCount = Integer.parseInt(values[0].trim());
+                    threadCount    = Integer.parseInt(values[1].trim());
+                    if ((minThreadCount < 1) || (threadCount < minThreadCount)) {
+                        throw new ParseException(
+                                "invalid thread count range");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            if (line.hasOption(OPT_PROCESSOR)) {
+                String type = line.getOptionValue(OPT_PROCESSOR);
+                if (PROCESSOR_THREADED.equalsIgnoreCase(type)) {
+                    processorType = PROCESSOR_THREADED;
+                } else if (PROCESSOR_FORKJOIN.equalsIgnoreCase(type)) {
+                    processorType = PROCESSOR_FORKJOIN;
+                } else if (PROCESSOR_VIRTUAL.equalsIgnoreCase(type)) {
+                    processorType = PROCESSOR_VIRTUAL;
+                } else if (PROCESSOR_PIPELINE.equalsIgnoreCase(type)) {
+                    processorType = PROCESSOR_PIPELINE;
+                } else if (PROCESSOR_AFFINITY.equalsIgnoreCase(type)) {
+                    processorType = PROCESSOR_AFFINITY;
+                } else {
+                    throw new ParseException("invalid argument for -" +
+                            OPT_PROCESSOR);
+                }
+            }
+            if ((minThreadCount != -1) &&
+                    !PROCESSOR_THREADED.equals(processorType)) {
+                throw new ParseException("-" + OPT_ADAPTIVE_THREADS +
+                        " is only supported by the '" + PROCESSOR_THREADED +
+                        "' processor");
+            }
+            if (line.hasOption(OPT_BATCH_SIZE)) {
+                try {
+                    batchSize = Integer.parseInt(
+                            line.getOptionValue(OPT_BATCH_SIZE));
+                    if (batchSize < 1) {
+                        throw new ParseException(
+                                "batch size must be larger then 0");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            if (line.hasOption(OPT_ENUMERATOR_QUEUE)) {
+                try {
+                    enumeratorQueueSize = Integer.parseInt(
+                            line.getOptionValue(OPT_ENUMERATOR_QUEUE));
+                    if (enumeratorQueueSize < 1) {
+                        throw new ParseException(
+                                "queue size must be larger then 0");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            if (line.hasOption(OPT_TRAVERSAL_THREADS)) {
+                try {
+                    traversalThreads = Integer.parseInt(
+                            line.getOptionValue(OPT_TRAVERSAL_THREADS));
+                    if (traversalThreads < 1) {
+                        throw new ParseException(
+                                "traversal thread count must be larger then 0");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            if (line.hasOption(OPT_LARGEST_FIRST)) {
+                try {
+                    largestFirstWindow = Integer.parseInt(
+                            line.getOptionValue(OPT_LARGEST_FIRST));
+                    if (largestFirstWindow < 2) {
+                        throw new ParseException(
+                                "look-ahead window must be larger then 1");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+                /* files are claimed one at a time to keep the order */
+                if (batchSize > 1) {
+                    throw new ParseException("-" + OPT_LARGEST_FIRST +
+                            " cannot be combined with -" + OPT_BATCH_SIZE);
+                }
+                if (PROCESSOR_FORKJOIN.equals(processorType) ||
+                        PROCESSOR_AFFINITY.equals(processorType)) {
+                    throw new ParseException("-" + OPT_LARGEST_FIRST +
+                            " is not supported by the '" + processorType +
+                            "' processor");
+                }
+            }
+            if (line.hasOption(OPT_PREFETCH)) {
+                try {
+                    prefetchCount = Integer.parseInt(
+                            line.getOptionValue(OPT_PREFETCH));
+                    if (prefetchCount < 1) {
+                        throw new ParseException(
+                                "prefetch count must be larger then 0");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            /*
+             * the fork/join processor lists directories by itself and does
+             * not use the file enumerator, that these options configure
+             */
+            if (PROCESSOR_FORKJOIN.equals(processorType)) {
+                for (String opt : new String[] { OPT_BATCH_SIZE,
+                        OPT_ENUMERATOR_QUEUE, OPT_TRAVERSAL_THREADS,
+                        OPT_PREFETCH }) {
+                    if (line.hasOption(opt)) {
+                        throw new ParseException("-" + opt +
+                                " is not supported by the '" +
+                                processorType + "' processor");
+                    }
+                }
+            }
+            if (line.hasOption(OPT_REPORT_QUEUE)) {
+                try {
+                    reportQueueSize = Integer.parseInt(
+                            line.getOptionValue(OPT_REPORT_QUEUE));
+                    if (reportQueueSize < 1) {
+                        throw new ParseException(
+                                "report queue size must be larger then 0");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            if (line.hasOption(OPT_GRAMMAR_CACHE_SIZE)) {
+                try {
+                    grammarCacheSize = Integer.parseInt(
+                            line.getOptionValue(OPT_GRAMMAR_CACHE_SIZE));
+                    if (grammarCacheSize < 1) {
+                        throw new ParseException(
+                                "grammar cache size must be larger then 0");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            if (line.hasOption(OPT_GRAMMAR_CACHE_WEIGHT)) {
+                grammarCacheWeight = parseMaxFileOption(
+                        line.getOptionValue(OPT_GRAMMAR_CACHE_WEIGHT));
+                if (grammarCacheWeight < 1024) {
+                    throw new ParseException(
+                            "grammar cache weight must be at least 1K");
+                }
+            }
+            if (line.hasOption(OPT_GRAMMAR_CACHE_POLICY)) {
+                String policy = line.getOptionValue(OPT_GRAMMAR_CACHE_POLICY);
+                if (POLICY_LRU.equalsIgnoreCase(policy)) {
+                    grammarCachePolicy =
+                            CMDIValidatorConfig.GrammarCachePolicy.LRU;
+                } else if (POLICY_TINY_LFU.equalsIgnoreCase(policy)) {
+                    grammarCachePolicy =
+                            CMDIValidatorConfig.GrammarCachePolicy.TINY_LFU;
+                } else {
+                    throw new ParseException("invalid argument for -" +
+                            OPT_GRAMMAR_CACHE_POLICY);
+                }
+            }
+            if (line.hasOption(OPT_STAGE_THREADS)) {
+                final String[] values =
+                        line.getOptionValue(OPT_STAGE_THREADS).split(",");
+                if (values.length != 5) {
+                    throw new ParseException("invalid argument for -" +
+                            OPT_STAGE_THREADS + ": expected five values");
+                }
+                stageThreads = new int[values.length];
+                try {
+                    for (int i = 0; i < values.length; i++) {
+                        stageThreads[i] = Integer.parseInt(values[i].trim());
+                        if (stageThreads[i] < 1) {
+                            throw new ParseException(
+                                    "stage thread count must be larger then 0");
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            if (line.hasOption(OPT_TIME_LIMIT)) {
+                try {
+                    timeLimit = Long.parseLong(
+                            line.getOptionValue(OPT_TIME_LIMIT));
+                    if (timeLimit < 1) {
+                        throw new ParseException(
+                                "time limit must be larger then 0");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
+            if (line.hasOption(OPT_FILE_TIME_LIMIT)) {
+                try {
+                    fileTimeLimit = Long.parseLong(
+                            line.getOptionValue(OPT_FILE_TIME_LIMIT));
+                    if (fileTimeLimit < 1) {
+                        throw new ParseException(
+                                "file time limit must be larger then 0");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new ParseException("invalid number");
+                }
+            }
             if (line.hasOption(OPT_NO_ESTIMATE) || (progressInterval < 0)) {
                 estimate = false;
             }
+            if (line.hasOption(OPT_WARM_UP)) {
+                warmUp = true;
+            }
             if (line.hasOption(OPT_MAX_FILESIZE)) {
                 maxFileSize = parseMaxFileOption(
                         line.getOptionValue(OPT_MAX_FILESIZE));
@@ -180,6 +452,14 @@ public class CMDIValidatorTool {
             if (line.hasOption(OPT_NO_MAX_FILESIZE)) {
                 maxFileSize = 0;
             }
+            if (line.hasOption(OPT_MEMORY_BUDGET)) {
+                memoryBudget = parseMaxFileOption(
+                        line.getOptionValue(OPT_MEMORY_BUDGET));
+                if (memoryBudget < 1024) {
+                    throw new ParseException(
+                            "memory budget must be at least 1K");
+                }
+            }
             if (line.hasOption(OPT_SCHEMA_CACHE_DIR)) {
                 String dir = line.getOptionValue(OPT_SCHEMA_CACHE_DIR);
                 if ((dir == null) || dir.isEmpty()) {
@@ -188,6 +468,12 @@ public class CMDIValidatorTool {
                 }
                 schemaCacheDir = new File(dir);
             }
+            if (line.hasOption(OPT_NO_SCHEMA_MANIFEST)) {
+                disableManifest = true;
+            }
+            if (line.hasOption(OPT_NO_ERROR_CAUSES)) {
+                disableErrorCauses = true;
+            }
             if (line.hasOption(OPT_NO_SCHEMATRON)) {
                 disableSchematron = true;
             }
@@ -268,7 +554,8 @@ public class CMDIValidatorTool {
                     int totalFileCount = -1;
                     if (estimate && logger.isInfoEnabled()) {
                         logger.debug("counting files ...");
-                        totalFileCount = countFiles(archive, fileFilter);
+                        totalFileCount = countFiles(archive, fileFilter,
+                                traversalThreads);
                     }
 
                     if (threadCount > 1) {
@@ -280,12 +567,79 @@ public class CMDIValidatorTool {
 
                     final CMDIValidatorConfig.Builder builder =
                             new CMDIValidatorConfig.Builder(archive, handler);
-                    logger.debug("skipping files larger than {} bytes",
-                            maxFileSize);
-                    builder.maxFileSize(maxFileSize);
+                    if (memoryBudget > 0) {
+                        logger.debug("admitting files within a memory budget of {} bytes",
+                                memoryBudget);
+                        builder.memoryBudget(memoryBudget);
+                    } else {
+                        logger.debug("skipping files larger than {} bytes",
+                                maxFileSize);
+                        builder.maxFileSize(maxFileSize);
+                    }
+                    if (batchSize > 1) {
+                        logger.debug("claiming {} files per batch", batchSize);
+                        builder.batchSize(batchSize);
+                    }
+                    if (enumeratorQueueSize > 0) {
+                        logger.debug("enumerating files in background (queue size {})",
+                                enumeratorQueueSize);
+                        builder.enumeratorQueueSize(enumeratorQueueSize);
+                    }
+                    if (traversalThreads > 1) {
+                        logger.debug("listing directories with {} threads",
+                                traversalThreads);
+                        builder.traversalThreads(traversalThreads);
+                    }
+                    if (largestFirstWindow > 1) {
+                        logger.debug("validating largest files first (look-ahead window {})",
+                                largestFirstWindow);
+                        builder.largestFirstWindow(largestFirstWindow);
+                    }
+                    if (prefetchCount > 0) {
+                        logger.debug("reading {} files ahead", prefetchCount);
+                        builder.prefetchCount(prefetchCount);
+                    }
+                    if (reportQueueSize > 0) {
+                        logger.debug("delivering reports in background (queue size {})",
+                                reportQueueSize);
+                        builder.reportQueueSize(reportQueueSize);
+                    }
+                    if (fileTimeLimit > 0) {
+                        logger.debug("giving up on files after {} milliseconds",
+                                fileTimeLimit);
+                        builder.fileTimeLimit(fileTimeLimit);
+                    }
+                    if (warmUp) {
+                        logger.debug("loading all schemas before validation with {} threads",
+                                threadCount);
+                        builder.warmUpThreads(threadCount);
+                    }
+                    if (grammarCacheSize > 0) {
+                        logger.debug("caching up to {} grammars",
+                                grammarCacheSize);
+                        builder.grammarCacheSize(grammarCacheSize);
+                    }
+                    if (grammarCacheWeight > 0) {
+                        logger.debug("limiting grammar cache to {} bytes",
+                                grammarCacheWeight);
+                        builder.grammarCacheWeight(grammarCacheWeight);
+                    }
+                    if (grammarCachePolicy != null) {
+                        logger.debug("using grammar cache policy {}",
+                                grammarCachePolicy);
+                        builder.grammarCachePolicy(grammarCachePolicy);
+                    }
                     if (schemaCacheDir != null) {
                         builder.schemaCacheDirectory(schemaCacheDir);
                     }
+                    if (disableManifest) {
+                        logger.debug("always performing full schema checking");
+                        builder.disableSchemaManifest();
+                    }
+                    if (disableErrorCauses) {
+                        logger.debug("not recording causes of errors");
+                        builder.disableErrorCauses();
+                    }
                     if (schematronFile != null) {
                         builder.schematronSchemaFile(schematronFile);
                     }
@@ -308,13 +662,52 @@ public class CMDIValidatorTool {
                         builder.extension(checkHandleExtension);
                     }
 
-                    final ThreadedCMDIValidatorProcessor processor =
+                    final ManagedCMDIValidatorProcessor processor;
+                    if (PROCESSOR_FORKJOIN.equals(processorType)) {
+                        logger.debug("using work-stealing processor");
+                        processor =
+                            new ForkJoinCMDIValidatorProcessor(threadCount);
+                    } else if (PROCESSOR_VIRTUAL.equals(processorType)) {
+                        logger.debug("using task per file processor");
+                        processor =
+                            new VirtualThreadCMDIValidatorProcessor(threadCount);
+                    } else if (PROCESSOR_PIPELINE.equals(processorType)) {
+                        logger.debug("using pipeline processor");
+                        if (stageThreads != null) {
+                            processor = new PipelineCMDIValidatorProcessor(
+                                    stageThreads[0], stageThreads[1],
+                                    stageThreads[2], stageThreads[3],
+                                    stageThreads[4],
+                                    PipelineCMDIValidatorProcessor.DEFAULT_QUEUE_SIZE);
+                        } else {
+                            processor =
+                                new PipelineCMDIValidatorProcessor(threadCount);
+                        }
+                    } else if (PROCESSOR_AFFINITY.equals(processorType)) {
+                        logger.debug("using schema affinity processor");
+                        processor =
+                            new SchemaAffinityCMDIValidatorProcessor(threadCount);
+                    } else if (minThreadCount != -1) {
+                        logger.debug("using between {} and {} threads",
+                                minThreadCount, threadCount);
+                        processor = new ThreadedCMDIValidatorProcessor(
+                                minThreadCount, threadCount);
+                    } else {
+                        processor =
                             new ThreadedCMDIValidatorProcessor(threadCount);
+                    }
                     processor.start();
                     try {
                         final CMDIValidator validator =
                                 new CMDIValidator(builder.build());
-                        processor.process(validator);
+                        if (timeLimit > 0) {
+                            logger.debug("limiting validation time to {} seconds",
+                                    timeLimit);
+                            validator.getJob().setTimeLimit(timeLimit,
+                                    TimeUnit.SECONDS);
+                        }
+                        final CMDIValidatorJob job =
+                                processor.process(validator);
 
                         /*
                          * Wait until validation is done and report about
@@ -322,7 +715,13 @@ public class CMDIValidatorTool {
                          */
                         for (;;) {
                             try {
-                                if (handler.await(progressInterval)) {
+                                if (progressInterval > 0) {
+                                    if (job.await(progressInterval,
+                                            TimeUnit.MILLISECONDS)) {
+                                        break;
+                                    }
+                                } else {
+                                    job.await();
                                     break;
                                 }
                             } catch (InterruptedException e) {
@@ -358,6 +757,81 @@ public class CMDIValidatorTool {
                                             ((bps != -1) ? Humanize.binaryPrefix(bps, LOCALE) : "N/A MB"));
                                 }
                                 if (logger.isDebugEnabled()) {
+                                    if ((enumeratorQueueSize > 0) ||
+                                            (traversalThreads > 1)) {
+                                        final CMDIValidator.Statistics stats =
+                                                validator.getStatistics();
+                                        logger.debug("[enumerator stats] files enumerated: {}, queue depth: {}/{}, worker stalls: {}, time stalled: {} ms",
+                                                stats.getFilesEnumeratedCount(),
+                                                stats.getEnumeratorQueueDepth(),
+                                                stats.getEnumeratorQueueCapacity(),
+                                                stats.getEnumeratorStallCount(),
+                                                stats.getEnumeratorStallTime());
+                                    }
+                                    if (prefetchCount > 0) {
+                                        final CMDIValidator.Statistics stats =
+                                                validator.getStatistics();
+                                        logger.debug("[prefetch stats] files prefetched: {}, bypassed: {}",
+                                                stats.getFilesPrefetchedCount(),
+                                                stats.getFilesPrefetchBypassedCount());
+                                    }
+                                    if (reportQueueSize > 0) {
+                                        final CMDIValidator.Statistics stats =
+                                                validator.getStatistics();
+                                        logger.debug("[report stats] queue depth: {}/{}, queue stalls: {}, batches: {}, handler latency: {} ms",
+                                                stats.getReportQueueDepth(),
+                                                stats.getReportQueueCapacity(),
+                                                stats.getReportQueueStallCount(),
+                                                stats.getReportBatchCount(),
+                                                String.format(LOCALE, "%.2f",
+                                                        stats.getReportHandlerLatency()));
+                                    }
+                                    if (memoryBudget > 0) {
+                                        final CMDIValidator.Statistics stats =
+                                                validator.getStatistics();
+                                        logger.debug("[memory stats] admitted: {}/{} bytes, admission waits: {}",
+                                                stats.getAdmittedMemory(),
+                                                memoryBudget,
+                                                stats.getAdmissionWaitCount());
+                                    }
+                                    final CMDIValidator.GrammarCacheStatistics grammarStats =
+                                            validator.getGrammarCacheStatistics();
+                                    logger.debug("[grammar cache stats] size: {}, weight: {} bytes, hits: {}, misses: {}, evictions: {}, rejections: {}, compiled: {}, verified: {}, compile time: {} ms, waits: {}, time waited: {} ms",
+                                            grammarStats.getSize(),
+                                            grammarStats.getWeight(),
+                                            grammarStats.getHitCount(),
+                                            grammarStats.getMissCount(),
+                                            grammarStats.getEvictionCount(),
+                                            grammarStats.getRejectionCount(),
+                                            grammarStats.getCompileCount(),
+                                            grammarStats.getVerifiedCount(),
+                                            grammarStats.getCompileTime(),
+                                            grammarStats.getWaitCount(),
+                                            grammarStats.getWaitTime());
+                                    if (processor instanceof PipelineCMDIValidatorProcessor) {
+                                        final PipelineCMDIValidatorProcessor.Statistics stats =
+                                                ((PipelineCMDIValidatorProcessor) processor).getStatistics();
+                                        for (PipelineCMDIValidatorProcessor.StageStatistics stage : stats.getStages()) {
+                                            logger.debug("[pipeline stats] stage: {}, threads: {}, queue depth: {}/{}, processed: {}, busy time: {} ms, utilization: {}%",
+                                                    stage.getName(),
+                                                    stage.getThreadCount(),
+                                                    stage.getQueueDepth(),
+                                                    stage.getQueueCapacity(),
+                                                    stage.getProcessedCount(),
+                                                    stage.getBusyTime(),
+                                                    String.format(LOCALE, "%.1f", stage.getUtilization() * 100.0));
+                                        }
+                                    }
+                                    if (processor instanceof SchemaAffinityCMDIValidatorProcessor) {
+                                        final SchemaAffinityCMDIValidatorProcessor.Statistics stats =
+                                                ((SchemaAffinityCMDIValidatorProcessor) processor).getStatistics();
+                                        logger.debug("[affinity stats] routed: {}, spilled over: {}, all lanes full: {}, unknown schema: {}, queued: {}",
+                                                stats.getRoutedCount(),
+                                                stats.getSpilledCount(),
+                                                stats.getLanesFullCount(),
+                                                stats.getUnknownSchemaCount(),
+                                                stats.getQueuedCount());
+                                    }
                                     if ((checkHandleExtension != null) &&
                                             checkHandleExtension.isResolvingHandles()) {
                                         final HandleResolver.Statistics stats =
@@ -372,6 +846,17 @@ public class CMDIValidatorTool {
                                 }
                             }
                         } // for (;;)
+
+                        final CMDIValidator.WarmUpStatistics warmUpStats =
+                                validator.getWarmUpStatistics();
+                        if (warmUpStats != null) {
+                            logger.info("schema warm-up: {} distinct profiles in {} files ({} failed to load, {} skipped because the grammar cache is full), took {} ms",
+                                    warmUpStats.getSchemaCount(),
+                                    warmUpStats.getFilesScannedCount(),
+                                    warmUpStats.getFailedCount(),
+                                    warmUpStats.getSkippedCount(),
+                                    warmUpStats.getTime());
+                        }
                     } finally {
                         processor.shutdown();
                     }
@@ -466,7 +951,99 @@ public class CMDIValidatorTool {
                 .longOpt("no-threads")
                 .desc("disable threading")
                 .build());
+        g2.addOption(Option.builder(OPT_ADAPTIVE_THREADS)
+                .hasArg()
+                .argName("MIN,MAX")
+                .longOpt("adaptive-threads")
+                .desc("adapt number of validator threads to throughput")
+                .build());
         options.addOptionGroup(g2);
+        options.addOption(Option.builder(OPT_PROCESSOR)
+                .hasArg()
+                .argName("TYPE")
+                .longOpt("processor")
+                .desc(String.format("type of validation processor: '%s' (default), '%s', '%s', '%s' or '%s'",
+                        PROCESSOR_THREADED, PROCESSOR_FORKJOIN, PROCESSOR_VIRTUAL,
+                        PROCESSOR_PIPELINE, PROCESSOR_AFFINITY))
+                .build());
+        options.addOption(Option.builder(OPT_BATCH_SIZE)
+                .hasArg()
+                .argName("COUNT")
+                .longOpt("batch-size")
+                .desc("number of files a validator thread claims at once")
+                .build());
+        options.addOption(Option.builder(OPT_ENUMERATOR_QUEUE)
+                .hasArg()
+                .argName("SIZE")
+                .longOpt("enumerator-queue")
+                .desc("enumerate files in a background thread, that keeps up to SIZE files queued")
+                .build());
+        options.addOption(Option.builder(OPT_TRAVERSAL_THREADS)
+                .hasArg()
+                .argName("COUNT")
+                .longOpt("traversal-threads")
+                .desc("number of threads listing directories concurrently")
+                .build());
+        options.addOption(Option.builder(OPT_LARGEST_FIRST)
+                .hasArg()
+                .argName("COUNT")
+                .longOpt("largest-first")
+                .desc("validate largest files first within a look-ahead window of COUNT files (claims one file at a time)")
+                .build());
+        options.addOption(Option.builder(OPT_PREFETCH)
+                .hasArg()
+                .argName("COUNT")
+                .longOpt("prefetch")
+                .desc("read the contents of COUNT files ahead of validation")
+                .build());
+        options.addOption(Option.builder(OPT_REPORT_QUEUE)
+                .hasArg()
+                .argName("SIZE")
+                .longOpt("report-queue")
+                .desc("deliver validation reports in background through a queue of SIZE")
+                .build());
+        options.addOption(Option.builder(OPT_GRAMMAR_CACHE_SIZE)
+                .hasArg()
+                .argName("COUNT")
+                .longOpt("grammar-cache-size")
+                .desc("keep up to COUNT compiled schemas in memory (default: 64)")
+                .build());
+        options.addOption(Option.builder(OPT_GRAMMAR_CACHE_WEIGHT)
+                .hasArg()
+                .argName("SIZE")
+                .longOpt("grammar-cache-weight")
+                .desc("limit the estimated memory of compiled schemas to SIZE")
+                .build());
+        options.addOption(Option.builder(OPT_GRAMMAR_CACHE_POLICY)
+                .hasArg()
+                .argName("POLICY")
+                .longOpt("grammar-cache-policy")
+                .desc(String.format("replacement policy for compiled schemas: '%s' or '%s' (default)",
+                        POLICY_LRU, POLICY_TINY_LFU))
+                .build());
+        options.addOption(Option.builder(OPT_STAGE_THREADS)
+                .hasArg()
+                .argName("R,P,S,X,H")
+                .longOpt("stage-threads")
+                .desc(String.format("number of threads for the read, parse, Schematron, extension and report stage of the '%s' processor",
+                        PROCESSOR_PIPELINE))
+                .build());
+        options.addOption(Option.builder(OPT_TIME_LIMIT)
+                .hasArg()
+                .argName("SECONDS")
+                .longOpt("time-limit")
+                .desc("stop validating files after SECONDS")
+                .build());
+        options.addOption(Option.builder(OPT_FILE_TIME_LIMIT)
+                .hasArg()
+                .argName("MILLISECONDS")
+                .longOpt("file-time-limit")
+                .desc("give up validating a single file after MILLISECONDS")
+                .build());
+        options.addOption(Option.builder(OPT_WARM_UP)
+                .longOpt("warm-up")
+                .desc("scan all files for their profiles and load these schemas before validation")
+                .build());
         options.addOption(Option.builder(OPT_NO_ESTIMATE)
                 .longOpt("no-estimate")
                 .desc("disable gathering of total file count for progress reporting")
@@ -483,6 +1060,12 @@ public class CMDIValidatorTool {
                  .longOpt("process-all")
                  .desc("process all files regardless of size")
                  .build());
+        g3.addOption(Option.builder(OPT_MEMORY_BUDGET)
+                .hasArg()
+                .argName("SIZE")
+                .longOpt("memory-budget")
+                .desc("validate files concurrently only as long as their estimated memory fits into SIZE and skip only files exceeding it")
+                .build());
         options.addOptionGroup(g3);
         
         options.addOption(Option.builder(OPT_SCHEMA_CACHE_DIR)
@@ -491,6 +1074,14 @@ public class CMDIValidatorTool {
                 .longOpt("schema-cache-dir")
                 .desc("schema caching directory")
                 .build());
+        options.addOption(Option.builder(OPT_NO_SCHEMA_MANIFEST)
+                .longOpt("no-schema-manifest")
+                .desc("do not remember schemas, that passed full schema checking, across runs")
+                .build());
+        options.addOption(Option.builder(OPT_NO_ERROR_CAUSES)
+                .longOpt("no-error-causes")
+                .desc("only record line, column and message of errors, but not their exceptions")
+                .build());
         OptionGroup g4 = new OptionGroup();
         g4.addOption(Option.builder(OPT_NO_SCHEMATRON)
                 .longOpt("no-schematron")
@@ -549,6 +1140,21 @@ public class CMDIValidatorTool {
     }
 
 
+    private static final int countFiles(TFile directory,
+            FileFilter fileFilter, int threads) {
+        if (threads > 1) {
+            final ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                return pool.invoke(new CountFilesTask(directory, fileFilter));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            return countFiles(directory, fileFilter);
+        }
+    }
+
+
     private static final int countFiles(TFile directory,
             FileFilter fileFilter) {
         int count = 0;
@@ -569,6 +1175,45 @@ public class CMDIValidatorTool {
     }
 
 
+    @SuppressWarnings("serial")
+    private static final class CountFilesTask extends RecursiveTask<Integer> {
+        private final TFile directory;
+        private final FileFilter fileFilter;
+
+
+        private CountFilesTask(TFile directory, FileFilter fileFilter) {
+            this.directory  = directory;
+            this.fileFilter = fileFilter;
+        }
+
+
+        @Override
+        protected Integer compute() {
+            int count = 0;
+            final TFile[] entries = directory.listFiles();
+            if ((entries != null) && (entries.length > 0)) {
+                final List<CountFilesTask> tasks =
+                        new ArrayList<CountFilesTask>();
+                for (TFile entry : entries) {
+                    if (entry.isDirectory()) {
+                        tasks.add(new CountFilesTask(entry, fileFilter));
+                    } else {
+                        if ((fileFilter != null) &&
+                                !fileFilter.accept(entry)) {
+                            continue;
+                        }
+                        count++;
+                    }
+                }
+                for (CountFilesTask task : invokeAll(tasks)) {
+                    count += task.join();
+                }
+            }
+            return count;
+        }
+    }
+
+
     private static class Handler extends CMDIValidationHandlerAdapter {
         private final boolean verbose;
         private long started               = -1;
@@ -577,8 +1222,6 @@ public class CMDIValidatorTool {
         private AtomicInteger filesSkipped = new AtomicInteger();
         private AtomicInteger filesInvalid = new AtomicInteger();
         private AtomicLong    totalBytes   = new AtomicLong();
-        private boolean isCompleted = false;
-        private final Object waiter = new Object();
 
         private Handler(boolean verbose) {
             this.verbose = verbose;
@@ -631,21 +1274,6 @@ public class CMDIValidatorTool {
         }
 
 
-        public boolean await(long timeout) throws InterruptedException {
-            synchronized (waiter) {
-                if (isCompleted) {
-                    return true;
-                }
-                if (timeout > 0) {
-                    waiter.wait(timeout);
-                } else {
-                    waiter.wait();
-                }
-                return isCompleted;
-            }
-        }
-
-
         @Override
         public void onJobStarted() throws CMDIValidatorException {
             logger.debug("validation process started");
@@ -664,17 +1292,15 @@ public class CMDIValidatorTool {
             case ABORTED:
                 logger.info("processing was aborted");
                 break;
+            case TIMEOUT:
+                logger.info("time limit exceeded, remaining files were not validated");
+                break;
             case ERROR:
                 logger.debug("validation process yielded an error");
                 break;
             default:
                 logger.debug("unknown result: " + result);
             } // switch
-
-            synchronized (waiter) {
-                isCompleted = true;
-                waiter.notifyAll();
-            } // synchronized (waiter)
         }
 
 
@@ -691,7 +1317,7 @@ public class CMDIValidatorTool {
             } else {
                 filesTotal.incrementAndGet();
                 if (file != null) {
-                    totalBytes.getAndAdd(file.length());
+                    totalBytes.getAndAdd(getFileSize(report));
                 }
 
                 switch (report.getHighestSeverity()) {